@@ -18,7 +18,7 @@
 
 /* TODO: 
  * HUP signal
- * rollntime / expire oder strutm
+ * strutm
  */  
  
 
@@ -28,6 +28,8 @@ import java.net.*;
 import java.security.*;
 import java.text.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import ch.ntb.usb.*;
 
@@ -41,6 +43,9 @@ class ParameterException extends Exception {
     public final static String helpMsg = new String (
 		"Parameters:\n"+
 		"    -host <string>    Host URL (default: http://127.0.0.1:8332)\n" +
+		"                      stratum+tcp://<host>:<port> URLs use the Stratum protocol\n" +
+		"    -gbt <address>    Solo mining: build work locally from getblocktemplate and pay to <address>\n" +
+		"                      (base58 P2PKH/P2SH address or hex:<scriptPubKey>)\n" +
 		"    -u <string>       RPC User name\n" + 
 		"    -p <string>       RPC Password\n" + 
 		"    -b <url> <user name> <password> \n" + 
@@ -64,6 +69,21 @@ class ParameterException extends Exception {
 		"                      in cluster mode: select devices which serial number starts with the given string\n" +
 		"    -e <number>       Maximum error rate\n"+
 		"    -tc               Enable target check (disabled by default)\n" + 
+		"    -pf <number>      Number of prefetched works per FPGA (default: 1, 0 disables prefetching)\n" + 
+		"    -ap <number>      Adaptive polling: poll every device when its nonce counters or golden nonces are due,\n" + 
+		"                      but at least every <number> ms (default: 0, polls all devices every 250ms)\n" + 
+		"    -sp               Separate USB and network stages: the poll loops only talk to the devices, work and\n" + 
+		"                      golden nonces are exchanged with a network thread per poll loop through ring buffers\n" + 
+		"                      of 2 works per FPGA which replace prefetching (-pf)\n" + 
+		"    -ws <number>      Cluster mode: number of works requested per batch by the shared work source\n" + 
+		"                      (default: 8, 1 disables batch requests, 0 disables the work source)\n" + 
+		"    -pw <w1>,<w2>,... Distribute the work between the URLs (primary first) according to the given weights\n" + 
+		"                      (default: use the URL with the best latency, error rate and reject rate)\n" + 
+		"    -pp <number>      Interval in s in which unused and disabled URLs are probed (default: 30, 0 disables probing)\n" + 
+		"    -sw <number>      Maximum number of submissions in flight per URL (default: 4)\n" + 
+		"    -sr <number>      Number of retries of failed submissions (default: 3)\n" + 
+		"    -sf               Resubmit shares to the backup servers if all retries failed\n" + 
+		"                      (only useful if the backup servers accept the work of the primary one)\n" + 
 		"    -v                Be verbose\n" +
 		"    -h                This help\n" +
 		"Parameters in single mode, test mode and programming mode\n"+
@@ -72,6 +92,7 @@ class ParameterException extends Exception {
 		"    -i                Print bus info\n" +
 		"Parameters in cluster mode\n"+
 		"    -n <number>       Maximum amount of devices per thread (default: 10)\n"+
+		"    -vt               One thread per FPGA (overwrites -n)\n"+
 		"Parameters in programming mode\n"+
 		"    -pt <string>      Program devices of the given type\n" + 
 		"                      If neither -ps nor -ps is given, only unconfigured devices are programmed\n" +
@@ -104,6 +125,248 @@ class FirmwareException extends Exception {
 }    
 
 
+// *****************************************************************************
+// ******* JsonScanner *********************************************************
+// *****************************************************************************
+// Single pass scanner for JSON-RPC responses. Only the positions of the values of
+// the requested keys are recorded (first occurrence at any depth, keys are compared
+// case insensitive), scanning stops as soon as all of them are found. Values are
+// converted on request, hex strings are decoded directly into the destination buffer.
+class JsonScanner {
+    private final String s;
+    private final String[] keys;
+    private final int[] start, end;	// value positions, start is -1 if the key was not found
+    private int found = 0;
+    private int pos = 0;
+
+// ******* constructor *********************************************************
+    public JsonScanner( String s, String... keys ) throws ParserException {
+	this.s = s;
+	this.keys = keys;
+	start = new int[keys.length];
+	end = new int[keys.length];
+	for ( int i=0; i<keys.length; i++ )
+	    start[i] = -1;
+	skipWs();
+	value();
+    }
+
+// scanner without keys which does not scan anything yet, starting at position pos
+    private JsonScanner( String s, int pos ) {
+	this.s = s;
+	this.pos = pos;
+	keys = new String[0];
+	start = end = new int[0];
+    }
+
+// ******* value ***************************************************************
+// skips a value and records the requested members of objects
+    private void value() throws ParserException {
+	if ( pos >= s.length() ) 
+	    throw new ParserException( "JsonScanner: Unexpected end of data" );
+	char c = s.charAt(pos);
+	if ( c == '{' ) {
+	    pos++;
+	    skipWs();
+	    if ( pos<s.length() && s.charAt(pos) == '}' ) {
+		pos++;
+		return;
+	    }
+	    while ( true ) {
+		skipWs();
+		int ks = pos + 1;
+		string();
+		int k = key( ks, pos-1 );
+		skipWs();
+		expect( ':' );
+		skipWs();
+		int vs = pos;
+		value();
+		if ( k >= 0 && start[k] < 0 ) {
+		    start[k] = vs;
+		    end[k] = pos;
+		    found++;
+		}
+		if ( done() ) 		// unwind, the rest of the enclosing values is not scanned
+		    return;
+		skipWs();
+		if ( pos<s.length() && s.charAt(pos) == ',' ) 
+		    pos++;
+		else {
+		    expect( '}' );
+		    return;
+		}
+	    }
+	}
+	else if ( c == '[' ) {
+	    pos++;
+	    skipWs();
+	    if ( pos<s.length() && s.charAt(pos) == ']' ) {
+		pos++;
+		return;
+	    }
+	    while ( true ) {
+		skipWs();
+		value();
+		if ( done() ) 
+		    return;
+		skipWs();
+		if ( pos<s.length() && s.charAt(pos) == ',' ) 
+		    pos++;
+		else {
+		    expect( ']' );
+		    return;
+		}
+	    }
+	}
+	else if ( c == '"' ) {
+	    string();
+	}
+	else {
+	    int i = pos;
+	    while ( pos<s.length() && ",}] \t\r\n".indexOf(s.charAt(pos)) < 0 ) 
+		pos++;
+	    if ( pos == i ) 
+		throw new ParserException( "JsonScanner: Unexpected `" + c + "' at position " + pos );
+	}
+    }
+
+// ******* split ***************************************************************
+// returns the elements of a top level array, e.g. the responses of a batch request
+    public static ArrayList<String> split( String s ) throws ParserException {
+	JsonScanner js = new JsonScanner( s, 0 );
+	ArrayList<String> l = new ArrayList<String>();
+	js.skipWs();
+	js.expect( '[' );
+	js.skipWs();
+	if ( js.pos<s.length() && s.charAt(js.pos) == ']' ) 
+	    return l;
+	while ( true ) {
+	    js.skipWs();
+	    int a = js.pos;
+	    js.value();
+	    l.add( s.substring(a, js.pos) );
+	    js.skipWs();
+	    if ( js.pos<s.length() && s.charAt(js.pos) == ',' ) 
+		js.pos++;
+	    else {
+		js.expect( ']' );
+		return l;
+	    }
+	}
+    }
+
+// ******* string **************************************************************
+    private void string() throws ParserException {
+	expect( '"' );
+	while ( pos<s.length() && s.charAt(pos) != '"' ) 
+	    pos += s.charAt(pos) == '\\' ? 2 : 1;
+	if ( pos >= s.length() ) 
+	    throw new ParserException( "JsonScanner: No closing `\"' found" );
+	pos++;
+    }
+
+    private void expect( char c ) throws ParserException {
+	if ( pos>=s.length() || s.charAt(pos) != c )
+	    throw new ParserException( "JsonScanner: `" + c + "' expected at position " + pos );
+	pos++;
+    }
+
+// all requested keys found, scanning can be stopped
+    private boolean done() {
+	return keys.length > 0 && found == keys.length;
+    }
+
+    private void skipWs() {
+	while ( pos<s.length() && s.charAt(pos) <= 32 )
+	    pos++;
+    }
+
+// returns the index of the requested key between ks and ke or -1
+    private int key( int ks, int ke ) {
+	for ( int i=0; i<keys.length; i++ )
+	    if ( start[i]<0 && keys[i].length() == ke-ks && s.regionMatches(true, ks, keys[i], 0, ke-ks) )
+		return i;
+	return -1;
+    }
+
+    private int index( String key ) throws ParserException {
+	for ( int i=0; i<keys.length; i++ )
+	    if ( keys[i].equals(key) ) {
+		if ( start[i] < 0 ) 
+		    throw new ParserException( "JsonScanner: Parameter `"+key+"' not found" );
+		return i;
+	    }
+	throw new IllegalArgumentException( "JsonScanner: `"+key+"' has not been requested" );
+    }
+
+// ******* has *****************************************************************
+    public boolean has( String key ) {
+	for ( int i=0; i<keys.length; i++ )
+	    if ( keys[i].equals(key) ) 
+		return start[i] >= 0;
+	return false;
+    }
+
+// ******* isNull **************************************************************
+// true if the key is missing or null
+    public boolean isNull( String key ) {
+	for ( int i=0; i<keys.length; i++ )
+	    if ( keys[i].equals(key) ) 
+		return start[i] < 0 || s.startsWith( "null", start[i] );
+	return true;
+    }
+
+// ******* get *****************************************************************
+// returns strings without quotes and with escape sequences decoded, other values as they are
+    public String get( String key ) throws ParserException {
+	int i = index( key );
+	int a = start[i], e = end[i];
+	if ( s.charAt(a) != '"' ) 
+	    return s.substring( a, e );
+	a++;
+	e--;
+	int j = s.indexOf( '\\', a );
+	if ( j < 0 || j >= e ) 
+	    return s.substring( a, e );
+	StringBuilder sb = new StringBuilder( e-a );
+	while ( a < e ) {
+	    char c = s.charAt(a++);
+	    if ( c != '\\' || a >= e ) {
+		sb.append( c );
+		continue;
+	    }
+	    c = s.charAt(a++);
+	    switch ( c ) {
+		case 'b': sb.append('\b'); break;
+		case 'f': sb.append('\f'); break;
+		case 'n': sb.append('\n'); break;
+		case 'r': sb.append('\r'); break;
+		case 't': sb.append('\t'); break;
+		case 'u': 
+		    if ( a+4 > e ) 
+			throw new ParserException( "JsonScanner: Invalid escape sequence in `"+key+"'" );
+		    sb.append( (char) Integer.parseInt( s.substring(a,a+4), 16 ) );
+		    a += 4;
+		    break;
+		default: sb.append(c);
+	    }
+	}
+	return sb.toString();
+    }
+
+// ******* hexToData ***********************************************************
+// decodes the hex string value of the key into buf
+    public void hexToData( String key, byte[] buf ) throws ParserException, NumberFormatException {
+	int i = index( key );
+	int a = start[i] + 1;
+	if ( s.charAt(start[i]) != '"' || end[i]-1-a < buf.length*2 ) 
+	    throw new NumberFormatException("Invalid length of string");
+	Codec.hexToBytes( s, a, buf, 0, buf.length );
+    }
+}
+
+
 // *****************************************************************************
 // ******* MsgObj *************************************************************
 // *****************************************************************************
@@ -123,11 +386,43 @@ class NewBlockMonitor extends Thread implements MsgObj {
     private static final int minLongPollInterval = 250; // in ms
 
     private byte[] prevBlock = new byte[32];
-    private byte[] dataBuf = new byte[128];
     
     private Vector<LogString> logBuf = new Vector<LogString>();
     
     public static boolean submitOld;
+
+    private static final long maxLongPollBackoff = 60000; // in ms
+    private static final int recentBlocks = 8;
+
+// ******* LongPoll ************************************************************
+    private static class LongPoll {
+	final int rpc;		// URL the long poll URL belongs to, -1 if given by -lp
+	final String url, user, passw;
+	volatile boolean active = false;
+	volatile long nextTime = 0;
+	long startTime = 0;
+	int failures = 0;
+	int firstCount = 0;	// new blocks detected first by this URL
+	int lateCount = 0;	// new blocks already detected by other URLs
+
+	LongPoll( int rpc, String url, String user, String passw ) {
+	    this.rpc = rpc;
+	    this.url = url;
+	    this.user = user;
+	    this.passw = passw;
+	}
+    }
+
+    private final Vector<LongPoll> longPolls = new Vector<LongPoll>();
+    private final byte[][] recent = new byte[recentBlocks][];	// previous values of prevBlock
+    private int recentCount = 0;
+
+    private WorkPrefetcher.Work freshWork = null;	// work of the long poll response
+    private long eventTime = 0;			// detection time of the last new block in ms
+    private int restartCount = 0;		// miners restarted since then
+    private long firstRestart = 0, lastRestart = 0;	// in ms after detection
+    private double restartTime = 0.0;		// time until the last miner restarted, in ms
+    private double restartTimeW = 1e-6;
     
 // ******* constructor *********************************************************
     public NewBlockMonitor( ) {
@@ -139,15 +434,10 @@ class NewBlockMonitor extends Thread implements MsgObj {
 	if ( data.length < 36 )
 	    throw new NumberFormatException("Invalid length of data");
 
-	boolean n = false;
-
-	for ( int i=0; i<32; i++ ) {
-	    n = n | ( data[i+4] != prevBlock[i] );
-	    prevBlock[i] = data[i+4];
-	}
+	boolean n = isNew( data );
 	if ( n ) {
-	    newCount += 1;
 	    submitOld = true;
+	    newBlock( null );
 	    if ( newCount > 0 )
 		msg("New block detected by block monitor");
 	}
@@ -155,73 +445,208 @@ class NewBlockMonitor extends Thread implements MsgObj {
 	return n;
     }
 
+// ******* isNew ***************************************************************
+// compares the previous block hash of the data with the current and the recent ones,
+// i.e. a block announced by several URLs or by a lagging one is only counted once
+    private boolean isNew( byte[] data ) {
+	if ( equals(data, prevBlock) ) 
+	    return false;
+	for ( int i=0; i<recentCount && i<recentBlocks; i++ ) 
+	    if ( equals(data, recent[i]) ) 
+		return false;
+	recent[recentCount % recentBlocks] = prevBlock.clone();
+	recentCount++;
+	for ( int i=0; i<32; i++ ) 
+	    prevBlock[i] = data[i+4];
+	return true;
+    }
+
+    private static boolean equals( byte[] data, byte[] pb ) {
+	for ( int i=0; i<32; i++ ) 
+	    if ( data[i+4] != pb[i] ) 
+		return false;
+	return true;
+    }
+
+// ******* newBlock ************************************************************
+// publishes a new block: wakes up all poll loops, w is the work of the new block or null
+    synchronized private void newBlock( WorkPrefetcher.Work w ) {
+	if ( restartCount > 0 ) {
+	    restartTime = restartTime * 0.9 + lastRestart;
+	    restartTimeW = restartTimeW * 0.9 + 1;
+	}
+	newCount += 1;
+	eventTime = new Date().getTime();
+	restartCount = 0;
+	freshWork = w == null ? null : new WorkPrefetcher.Work( w.response, w.json, w.rollNTime, w.rpcNum, newCount, w.time, w.getTime, null );
+	notifyAll();
+	WorkSource.newBlock();
+	WorkPrefetcher.newBlock();
+	NetworkStage.wakeupAll();
+    }
+
+// ******* isCurrent ***********************************************************
+// true if the data belongs to the current block
+    synchronized public boolean isCurrent( byte[] data ) {
+	return equals( data, prevBlock );
+    }
+
+// ******* waitForNew **********************************************************
+// waits up to timeout ms unless the block monitor count differs from count
+    synchronized public void waitForNew( int count, long timeout ) {
+	if ( newCount == count ) {
+	    try {
+		wait( timeout );
+	    }
+	    catch ( InterruptedException e ) {
+	    }
+	}
+    }
+
+// ******* takeWork ************************************************************
+// returns the work of the long poll response for the current block once, otherwise null
+    synchronized public WorkPrefetcher.Work takeWork() {
+	WorkPrefetcher.Work w = freshWork;
+	freshWork = null;
+	return w != null && w.newCount == newCount ? w : null;
+    }
+
+// ******* restarted ***********************************************************
+// called if a miner got work of block monitor count count
+    synchronized public void restarted( int count ) {
+	if ( count != newCount || newCount < 1 ) 
+	    return;
+	long d = new Date().getTime() - eventTime;
+	if ( restartCount == 0 ) 
+	    firstRestart = d;
+	lastRestart = d;
+	restartCount++;
+    }
+
+// ******* info ****************************************************************
+    synchronized public String info() {
+	StringBuilder sb = new StringBuilder();
+	if ( longPolls.size() > 1 ) {
+	    sb.append( "long polling (first/late detections):" );
+	    for ( LongPoll lp : longPolls ) 
+		sb.append( "  " + lp.url + "=" + lp.firstCount + "/" + lp.lateCount + ( lp.failures > 0 ? " (failing)" : "" ) );
+	}
+	if ( restartCount > 0 || restartTimeW > 0.5 ) {
+	    sb.append( sb.length() > 0 ? ",  " : "" );
+	    sb.append( "new block restart: " + restartCount + " miners restarted " + firstRestart + "ms to " + lastRestart + "ms after detection"
+		+ ( restartTimeW > 0.5 ? ",  average until all restarted: " + Math.round(restartTime/restartTimeW) + "ms" : "" ) );
+	}
+	return sb.length() > 0 ? sb.toString() : null;
+    }
+
 // ******* run *****************************************************************
+// long poll engine: the requests of all URLs are kept open concurrently by the
+// HTTP client, this thread only (re)starts them
     public void run () {
 	running = true;
-	
-	boolean enableLP = true;
-	boolean warnings = true;
-	long enableLPTime = 0;
-	
 	submitOld = true;
 
 	while ( running ) {
 	    long t = new Date().getTime();
-	    
-	    if ( BTCMiner.longPollURL!=null && enableLP && t>enableLPTime) {
-		try {
-//		    msg("info: LP");
-		    String req = BTCMiner.bitcoinRequest(this, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw, "getwork", "");
-		    BTCMiner.hexStrToData(BTCMiner.jsonParse(req, "data"), dataBuf);
-		    submitOld = true;
-		    String so = null;
-		    try {
-			so = BTCMiner.jsonParse(req, "submitold");
-			if ( so.equalsIgnoreCase("false") )
-			    submitOld = false;
-		    }
-		    catch ( Exception e ) {
-		    }
-		    
-		    for ( int i=0; i<32; i++ ) {
-			prevBlock[i] = dataBuf[i+4];
-		    }
-		    newCount += 1;
-		    msg( "New block detected by long polling" + ( so == null ? "" : " (submitold = " + so + ")" ) );
-		}
-		catch ( MalformedURLException e ) {
-		    msg("Warning: " + e.getLocalizedMessage() + ": disabling long polling");
-		    enableLP = false;
-		}
-		catch ( IOException e ) {
-		    if ( new Date().getTime() < t+500 ) {
-			msg("Warning: " + e.getLocalizedMessage() + ": disabling long polling fo 60s");
-			enableLPTime = new Date().getTime() + 60000;
-		    }
-		}
-		catch ( Exception e ) {
-		    if ( warnings )
-			msg("Warning: " + e.getLocalizedMessage());
-		    warnings = false;
-		}
+
+	    if ( BTCMiner.longPollURL != null && longPolls.size() == 0 && BTCMiner.longPollRpcNum < 0 )	// given by -lp
+		longPolls.add( new LongPoll(-1, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw) );
+	    for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+		if ( BTCMiner.longPollURLs[i] != null && ! hasLongPoll(i) ) 
+		    longPolls.add( new LongPoll(i, BTCMiner.longPollURLs[i], BTCMiner.rpcuser[i], BTCMiner.rpcpassw[i]) );
 	    }
-	    
-	    if ( BTCMiner.longPollURL==null )
-		enableLPTime = new Date().getTime() + 2000;
-	    
-	    t += minLongPollInterval - new Date().getTime();
-	    if ( t > 5 ) {
-		try {
-		    Thread.sleep( t );
-		}
-		catch ( InterruptedException e) {
-		}	 
+
+	    for ( LongPoll lp : longPolls ) {
+		if ( ! lp.active && lp.nextTime <= t ) 
+		    start( lp );
+	    }
+
+	    try {
+		Thread.sleep( minLongPollInterval );
 	    }
+	    catch ( InterruptedException e) {
+	    }	 
 	}
 	
 //	System.out.println("Stopping block monitor"); 
     }
 
+    private boolean hasLongPoll( int rpc ) {
+	for ( LongPoll lp : longPolls ) 
+	    if ( lp.rpc == rpc ) 
+		return true;
+	return false;
+    }
+
+// ******* start ***************************************************************
+    private void start( final LongPoll lp ) {
+	lp.active = true;
+	lp.startTime = new Date().getTime();
+	try {
+	    RpcClient.get( lp.url, lp.user, lp.passw, (int) Math.round(2000.0*BTCMiner.connectionEffort), BTCMiner.httpHeaders )
+		.postAsync( "{\"jsonrpc\":\"1.0\",\"id\":0,\"method\":\"getwork\",\"params\":[]}", 1000000 )
+		.whenComplete( (r, e) -> complete( lp, r, e ) );
+	}
+	catch ( IOException e ) {
+	    msg("Warning: " + e.getLocalizedMessage() + ": disabling long polling of " + lp.url);
+	    lp.nextTime = Long.MAX_VALUE;
+	    lp.active = false;
+	}
+    }
+
+// ******* complete ************************************************************
+// called by the HTTP client if a long poll request returned
+    private void complete( LongPoll lp, RpcClient.Response r, Throwable e ) {
+	long t = new Date().getTime();
+	String err = null;
+	try {
+	    if ( e != null ) 
+		err = ( e.getCause() != null ? e.getCause() : e ).toString();
+	    else if ( r.status >= 400 ) 
+		err = "Server returned HTTP response code: " + r.status;
+	    else {
+		JsonScanner json = new JsonScanner( r.body, "data", "target", "submitold" );
+		byte[] buf = new byte[128];
+		json.hexToData( "data", buf );
+		String so = json.has("submitold") ? json.get("submitold") : null;
+		
+		WorkPrefetcher.Work w = null;
+		if ( lp.rpc >= 0 && BTCMiner.gbtAddress == null ) 	// the long poll response is work of that URL
+		    w = new WorkPrefetcher.Work( r.body, json, r.header("X-Roll-NTime"), lp.rpc, 0, t, 0, null );
+		boolean n;
+		synchronized ( this ) {
+		    n = isNew( buf );
+		    if ( n ) {
+			submitOld = so == null || ! so.equalsIgnoreCase("false");
+			newBlock( w );
+			lp.firstCount++;
+		    }
+		    else {
+			lp.lateCount++;
+		    }
+		}
+		if ( n ) 
+		    msg( "New block detected by long polling" + ( longPolls.size() > 1 ? " of " + lp.url : "" ) + ( so == null ? "" : " (submitold = " + so + ")" ) );
+	    }
+	}
+	catch ( Exception ex ) {
+	    err = ex.getLocalizedMessage();
+	}
+
+	if ( err == null ) {
+	    lp.failures = 0;
+	    lp.nextTime = lp.startTime + minLongPollInterval;
+	}
+	else {
+	    lp.failures++;
+	    long d = Math.round( Math.min(maxLongPollBackoff, 1000L << Math.min(lp.failures-1, 16)) * (0.5 + 0.5*Math.random()) );	// jittered exponential backoff
+	    lp.nextTime = t + d;
+	    if ( lp.failures == 1 ) 
+		msg("Warning: " + err + ": long polling of " + lp.url + " failed, retrying in " + (d+500)/1000 + "s");
+	}
+	lp.active = false;
+    }
+
 // ******* msg *****************************************************************
     public void msg(String s) {
 	synchronized ( logBuf ) {
@@ -242,7 +667,952 @@ class NewBlockMonitor extends Thread implements MsgObj {
 		    BTCMiner.logFile2.println( BTCMiner.dateFormat.format(ls.time) + ": " + ls.msg );
 		}
 	    }
-	    logBuf.clear();
+	    logBuf.clear();
+	}
+    }
+}
+
+// *****************************************************************************
+// ******* WorkPrefetcher ******************************************************
+// *****************************************************************************
+// Small queue of getwork responses per miner which is refilled in the background,
+// so the poll loop does not wait for the network if new work is required. Queued
+// work is dropped if a new block has been detected since it was fetched, if it is
+// older than the poll interval or if its URL has been disabled.
+class WorkPrefetcher {
+    public static int depth = 1;
+    public static final int maxThreads = 16;	// concurrent requests of all prefetchers
+    public static long maxWait = 2000;		// time in ms a poll loop waits for a pending request before it requests work itself
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor( maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+	public Thread newThread( Runnable r ) {
+	    Thread t = new Thread( r, "work prefetcher" );
+	    t.setDaemon( true );
+	    return t;
+	}
+    } );
+    static {
+	executor.allowCoreThreadTimeOut( true );
+    }
+    private static final Vector<WorkPrefetcher> prefetchers = new Vector<WorkPrefetcher>();
+
+// ******* Work ****************************************************************
+    static class Work {
+	public final String response;
+	public final JsonScanner json;	// scanned response, null if it could not be parsed
+	public final String rollNTime;	// X-Roll-NTime header
+	public final int rpcNum;
+	public final int newCount;	// block monitor count after the work has been checked
+	public final long time;		// fetch time
+	public final long getTime;	// duration of the request in ms
+	public final IOException error;
+	public final int rollOffset;	// ntime offset of a work unit in s, see WorkSource
+	public final int rollMax;	// maximum number of ntime rolls of a work unit, -1 if not limited
+
+	Work( String response, JsonScanner json, String rollNTime, int rpcNum, int newCount, long time, long getTime, IOException error ) {
+	    this.response = response;
+	    this.json = json;
+	    this.rollNTime = rollNTime;
+	    this.rpcNum = rpcNum;
+	    this.newCount = newCount;
+	    this.time = time;
+	    this.getTime = getTime;
+	    this.error = error;
+	    rollOffset = 0;
+	    rollMax = -1;
+	}
+
+// work unit with a part of the ntime range of w
+	Work( Work w, int rollOffset, int rollMax, long getTime ) {
+	    response = w.response;
+	    json = w.json;
+	    rollNTime = w.rollNTime;
+	    rpcNum = w.rpcNum;
+	    newCount = w.newCount;
+	    time = w.time;
+	    this.getTime = getTime;
+	    error = w.error;
+	    this.rollOffset = rollOffset;
+	    this.rollMax = rollMax;
+	}
+    }
+
+    private final BTCMiner miner;
+    private final LinkedList<Work> queue = new LinkedList<Work>();
+    private int pending = 0;
+    private volatile int target = depth;	// number of queued and pending works refill aims at
+
+    public int maxDepth = 0;
+    public int staleCount = 0;
+    public int takeCount = 0;
+    public int missCount = 0;
+    public double refillTime = 0.0;	// time from refill request until work is queued, in ms
+    public double refillTimeW = 1e-6;
+
+// ******* constructor *********************************************************
+    public WorkPrefetcher( BTCMiner miner ) {
+	this.miner = miner;
+	prefetchers.add( this );
+    }
+
+// ******* fetch ***************************************************************
+// requests work from the first enabled URL, returns null if all URLs are disabled
+    public static Work fetch( BTCMiner m ) {
+	int i = PoolScheduler.select( m );
+	return i < 0 ? null : fetch( m, i );
+    }
+
+// requests work from URL i
+    public static Work fetch( BTCMiner m, int i ) {
+	long t = new Date().getTime();
+	BTCMiner.rollNTimeHeader.set( null );
+	try {
+	    String response = BTCMiner.bitcoinRequest( m, BTCMiner.rpcurl[i], BTCMiner.rpcuser[i], BTCMiner.rpcpassw[i], "getwork", "" );
+	    m.ioErrorCount.set( i, 0 );
+	    JsonScanner json = null;
+	    boolean old = false;	// work of a previous block, e.g. requested before a new block has been detected
+	    try {
+		json = new JsonScanner( response, "data", "target" );
+		byte[] buf = new byte[128];
+		json.hexToData( "data", buf );
+		BTCMiner.newBlockMonitor.checkNew( buf );
+		old = ! BTCMiner.newBlockMonitor.isCurrent( buf );
+	    }
+	    catch ( Exception e ) {
+		// reported by getWork
+	    }
+	    long t2 = new Date().getTime();
+	    PoolScheduler.getwork( i, t2-t, json != null );
+	    return new Work( response, json, BTCMiner.rollNTimeHeader.get(), i, BTCMiner.newBlockMonitor.newCount - (old ? 1 : 0), t2, t2-t, null );
+	}
+	catch ( IOException e ) {
+	    PoolScheduler.getwork( i, 0, false );
+	    return new Work( null, null, null, i, BTCMiner.newBlockMonitor.newCount, t, 0, e );
+	}
+    }
+
+// ******* take ****************************************************************
+// returns the next valid work, triggers refilling. If the queue is empty, it waits up 
+// to timeout ms for a pending request, e.g. for the refill after a new block, and
+// returns null if no work arrived.
+    public Work take( long timeout ) {
+	Work w = BTCMiner.newBlockMonitor.takeWork();
+	synchronized ( this ) {
+	    takeCount++;
+	    if ( w == null ) 
+		w = next();
+	    if ( w == null ) 
+		missCount++;
+	}
+	refill( depth );
+	if ( w == null && timeout > 0 ) {
+	    w = await( timeout );
+	    if ( w != null ) 
+		refill( depth );
+	}
+	return w;
+    }
+
+// ******* next ****************************************************************
+// removes and returns the next valid work or null, the caller holds the lock
+    private Work next() {
+	long t = new Date().getTime();
+	Work w = null;
+	while ( queue.size()>0 && w==null ) {
+	    w = queue.removeFirst();
+	    if ( w.error==null && ( w.newCount < BTCMiner.newBlockMonitor.newCount || w.time + miner.maxPollInterval < t || miner.disableTime[w.rpcNum] > t ) ) {
+		staleCount++;
+		w = null;
+	    }
+	}
+	return w;
+    }
+
+// ******* await ***************************************************************
+// waits up to timeout ms for pending requests
+    private synchronized Work await( long timeout ) {
+	long t = new Date().getTime() + timeout;
+	Work w = null;
+	long d;
+	while ( w == null && pending > 0 && (d = t - new Date().getTime()) > 0 ) {
+	    try {
+		wait( d );
+	    }
+	    catch ( InterruptedException e ) {
+		break;
+	    }
+	    w = next();
+	}
+	return w;
+    }
+
+// ******* newBlock ************************************************************
+// called by the block monitor: drops the work of the previous block and refills all
+// queues at once, i.e. the miners get the work of the new block from the queues
+    public static void newBlock() {
+	synchronized ( prefetchers ) {
+	    for ( WorkPrefetcher p : prefetchers ) {
+		synchronized ( p ) {
+		    Iterator<Work> i = p.queue.iterator();
+		    while ( i.hasNext() ) {
+			Work w = i.next();
+			if ( w.error == null && w.newCount < BTCMiner.newBlockMonitor.newCount ) {
+			    i.remove();
+			    p.staleCount++;
+			}
+		    }
+		}
+		if ( p.miner.fatalError == null && ! p.miner.suspended ) 
+		    p.refill( p.target );
+	    }
+	}
+    }
+
+// ******* poll ****************************************************************
+// used by the network stage: returns the next valid work or null without counting it as 
+// take or miss, room is the free space of the work ring, i.e. at most room works are
+// queued, pending or returned
+    public Work poll( int room ) {
+	Work w = BTCMiner.newBlockMonitor.takeWork();
+	if ( w == null ) {
+	    synchronized ( this ) {
+		w = next();
+	    }
+	}
+	refill( w == null ? room : room-1 );
+	return w;
+    }
+
+// ******* refill **************************************************************
+    private void refill( int n ) {
+	synchronized ( this ) {
+	    target = n;
+	    if ( queue.size() + pending >= n ) 
+		return;
+	    pending++;
+	}
+	final long t = new Date().getTime();
+	executor.execute( new Runnable() {
+	    public void run() {
+		Work w = fetch( miner );
+		synchronized ( WorkPrefetcher.this ) {
+		    pending--;
+		    if ( w != null && w.error == null && w.newCount < BTCMiner.newBlockMonitor.newCount ) {
+			staleCount++;		// requested before a new block, refilled below
+		    }
+		    else if ( w != null ) {
+			queue.add( w );
+			if ( queue.size() > maxDepth ) 
+			    maxDepth = queue.size();
+			refillTime = refillTime * 0.99 + (new Date().getTime() - t);
+			refillTimeW = refillTimeW * 0.99 + 1;
+		    }
+		    WorkPrefetcher.this.notifyAll();
+		}
+		if ( w != null && miner.stage != null ) 
+		    miner.stage.wakeup();
+		if ( w != null && w.error == null ) 
+		    refill( target );
+	    }
+	} );
+    }
+
+// ******* size ****************************************************************
+    public synchronized int size() {
+	return queue.size();
+    }
+}
+
+// *****************************************************************************
+// ******* WorkSource **********************************************************
+// *****************************************************************************
+// Work source shared by all miners of a cluster. Instead of one getwork request per
+// FPGA, work is requested in JSON-RPC batches (or one by one from servers which do
+// not support batches) by a single background thread and handed out from a lock
+// free queue. If the server allows ntime rolling, every work is split into units
+// with disjoint ntime ranges of rollSlot seconds. Every unit carries the number of
+// the URL it has been fetched from, i.e. shares are submitted to the right pool.
+class WorkSource {
+    public static int batchSize = 8;	// getwork requests per batch, 0 disables the work source
+    public static int rollSlot = 10;	// ntime range of a work unit in s
+
+    private static WorkSource shared = null;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+	public Thread newThread( Runnable r ) {
+	    Thread t = new Thread( r, "work source" );
+	    t.setDaemon( true );
+	    return t;
+	}
+    } );
+
+    private final ConcurrentLinkedQueue<WorkPrefetcher.Work> queue = new ConcurrentLinkedQueue<WorkPrefetcher.Work>();
+    private final AtomicInteger size = new AtomicInteger( 0 );
+    private final AtomicBoolean pending = new AtomicBoolean( false );
+    private final Set<BTCMiner> miners = Collections.newSetFromMap( new ConcurrentHashMap<BTCMiner,Boolean>() );
+    private final boolean[] batchSupported = new boolean[BTCMiner.maxRpcCount];
+
+    private final AtomicInteger maxSize = new AtomicInteger( 0 );
+    private final AtomicLong batchCount = new AtomicLong( 0 );
+    private final AtomicLong workCount = new AtomicLong( 0 );
+    private final AtomicLong unitCount = new AtomicLong( 0 );
+    private final AtomicLong takeCount = new AtomicLong( 0 );
+    private final AtomicLong staleCount = new AtomicLong( 0 );
+    private final AtomicLong missCount = new AtomicLong( 0 );
+    private double batchTime = 0.0;	// duration of a batch request in ms
+    private double batchTimeW = 1e-6;
+
+// ******* constructor *********************************************************
+    private WorkSource() {
+	for ( int i=0; i<batchSupported.length; i++ )
+	    batchSupported[i] = true;
+    }
+
+    public static synchronized WorkSource shared() {
+	if ( shared == null ) 
+	    shared = new WorkSource();
+	return shared;
+    }
+
+// ******* take ****************************************************************
+// returns the next valid work unit for miner m or null if the queue is empty, triggers refilling
+    public WorkPrefetcher.Work take( BTCMiner m ) {
+	takeCount.incrementAndGet();
+	WorkPrefetcher.Work w = poll( m );
+	if ( w == null ) 
+	    missCount.incrementAndGet();
+	return w;
+    }
+
+// ******* poll ****************************************************************
+// like take, but not counted as take or miss, used by the network stage
+    public WorkPrefetcher.Work poll( BTCMiner m ) {
+	miners.add( m );
+	WorkPrefetcher.Work w = BTCMiner.newBlockMonitor.takeWork();
+	if ( w != null ) {
+	    workCount.incrementAndGet();
+	    addUnits( w, 1 );
+	}
+	long t = new Date().getTime();
+	while ( (w = queue.poll()) != null ) {
+	    size.decrementAndGet();
+	    if ( w.error != null || ( w.newCount >= BTCMiner.newBlockMonitor.newCount && w.time + m.maxPollInterval > t && m.disableTime[w.rpcNum] <= t 
+		    && ( w.rollMax < 0 || w.time + BTCMiner.rollExpire(w.rollNTime)*1000L > t ) ) )
+		break;
+	    staleCount.incrementAndGet();
+	}
+	refill( m );
+	return w;
+    }
+
+// ******* newBlock ************************************************************
+// called by the block monitor: drops the work of the previous block and refills the queue at once
+    public static void newBlock() {
+	WorkSource ws;
+	synchronized ( WorkSource.class ) {
+	    ws = shared;
+	}
+	if ( ws == null ) 
+	    return;
+	int nc = BTCMiner.newBlockMonitor.newCount;
+	for ( WorkPrefetcher.Work w : ws.queue ) {
+	    if ( w.error == null && w.newCount < nc && ws.queue.remove(w) ) {
+		ws.size.decrementAndGet();
+		ws.staleCount.incrementAndGet();
+	    }
+	}
+	Iterator<BTCMiner> i = ws.miners.iterator();
+	if ( i.hasNext() ) 
+	    ws.refill( i.next() );
+    }
+
+// ******* refill **************************************************************
+// the miner is used for error messages and to determine the enabled URLs
+    private void refill( final BTCMiner m ) {
+	if ( size.get() >= target() || !pending.compareAndSet(false, true) ) 
+	    return;
+	executor.execute( new Runnable() {
+	    public void run() {
+		try {
+		    boolean b = true;
+		    while ( b && size.get() < target() ) {
+			b = fill( m );
+			NetworkStage.wakeupAll();	// the units may be taken by the miners of every stage
+		    }
+		}
+		finally {
+		    pending.set( false );
+		}
+	    }
+	} );
+    }
+
+// with the network stage the work rings buffer the work units
+    private int target() {
+	return miners.size() * ( NetworkStage.enabled ? 1 : Math.max( 1, WorkPrefetcher.depth ) );
+    }
+
+    private void add( WorkPrefetcher.Work w ) {
+	queue.add( w );
+	int s = size.incrementAndGet();
+	int ms = maxSize.get();
+	while ( s > ms && !maxSize.compareAndSet(ms, s) ) 
+	    ms = maxSize.get();
+    }
+
+// ******* fill ****************************************************************
+// requests one batch of work from the first enabled URL, returns false if that failed
+    private boolean fill( BTCMiner m ) {
+	long t = new Date().getTime();
+	int i = PoolScheduler.select( m );
+	if ( i < 0 )
+	    return false;
+	String url = BTCMiner.rpcurl[i];
+
+	if ( batchSize < 2 || !batchSupported[i] || StratumClient.isStratumUrl(url) || BTCMiner.gbtAddress != null ) {
+	    WorkPrefetcher.Work w = WorkPrefetcher.fetch( m );
+	    if ( w == null ) 
+		return false;
+	    if ( w.error == null ) {
+		workCount.incrementAndGet();
+		addUnits( w, 1 );
+	    }
+	    else add( w );
+	    return w.error == null;
+	}
+
+	StringBuilder sb = new StringBuilder( batchSize*64 );
+	sb.append( '[' );
+	synchronized ( BTCMiner.class ) {
+	    for ( int j=0; j<batchSize; j++ ) {
+		BTCMiner.bcid += 1;
+		sb.append( j==0 ? "" : "," ).append( "{\"jsonrpc\":\"1.0\",\"id\":" ).append( BTCMiner.bcid ).append( ",\"method\":\"getwork\",\"params\":[]}" );
+	    }
+	}
+	sb.append( ']' );
+
+	BTCMiner.rollNTimeHeader.set( null );
+	String response;
+	try {
+	    response = BTCMiner.httpGet( m, url, BTCMiner.rpcuser[i], BTCMiner.rpcpassw[i], sb.toString() );
+	    m.ioErrorCount.set( i, 0 );
+	}
+	catch ( IOException e ) {
+	    // some servers answer batch requests with a HTTP error: if a single request succeeds, batching is disabled for this URL
+	    WorkPrefetcher.Work w = WorkPrefetcher.fetch( m, i );
+	    if ( w.error == null ) {
+		batchSupported[i] = false;
+		m.msg( "Batch request to " + url + " failed: " + e.getLocalizedMessage() + ", requesting work individually" );
+		workCount.incrementAndGet();
+		addUnits( w, 1 );
+		return true;
+	    }
+	    add( w );
+	    return false;
+	}
+	String rh = BTCMiner.rollNTimeHeader.get();
+	long t2 = new Date().getTime();
+
+	ArrayList<String> l = null;
+	try {
+	    l = JsonScanner.split( response );
+	}
+	catch ( ParserException e ) {
+	}
+	if ( l == null || l.size() < 1 ) {
+	    batchSupported[i] = false;
+	    m.msg( "Batch requests not supported by " + url + ", requesting work individually" );
+	    return true;
+	}
+	synchronized ( this ) {
+	    batchTime = batchTime * 0.99 + (t2 - t);
+	    batchTimeW = batchTimeW * 0.99 + 1;
+	}
+	batchCount.incrementAndGet();
+
+	int n = 0;
+	for ( String r : l ) {
+	    JsonScanner json;
+	    try {
+		json = new JsonScanner( r, "data", "target" );
+		byte[] buf = new byte[128];
+		json.hexToData( "data", buf );
+		BTCMiner.newBlockMonitor.checkNew( buf );
+	    }
+	    catch ( Exception e ) {
+		continue;
+	    }
+	    workCount.incrementAndGet();
+	    addUnits( new WorkPrefetcher.Work( r, json, rh, i, BTCMiner.newBlockMonitor.newCount, t2, (t2-t)/l.size(), null ), l.size() );
+	    n++;
+	}
+	PoolScheduler.getwork( i, t2-t, n > 0 );
+	if ( n == 0 ) {	// let getWork report the error
+	    add( new WorkPrefetcher.Work( l.get(0), null, rh, i, BTCMiner.newBlockMonitor.newCount, t2, t2-t, null ) );
+	    return false;
+	}
+	return true;
+    }
+
+// splits the work into units with disjoint ntime ranges if rolling is allowed
+    private void addUnits( WorkPrefetcher.Work w, int works ) {
+	int units = rollSlot > 0 ? BTCMiner.rollExpire(w.rollNTime) / rollSlot : 0;
+	if ( units < 2 ) {
+	    unitCount.incrementAndGet();
+	    add( w );
+	    return;
+	}
+	for ( int k=0; k<units; k++ ) {
+	    unitCount.incrementAndGet();
+	    add( new WorkPrefetcher.Work( w, k*rollSlot, rollSlot-1, w.getTime/units ) );
+	}
+    }
+
+// ******* info ****************************************************************
+    public String info() {
+	double bt;
+	synchronized ( this ) {
+	    bt = batchTime / batchTimeW;
+	}
+	long tc = takeCount.get();
+	return "work source: queue=" + size.get() + " (max " + maxSize.getAndSet(size.get()) + "),  batches=" + batchCount.get() + ",  works=" + workCount.get()
+	    + ",  units=" + unitCount.get() + ",  stale=" + staleCount.get() + ",  misses=" + missCount.get() + "/" + tc
+	    + ( batchCount.get() > 0 ? ",  batch time=" + String.format("%.1f", bt) + "ms" : "" );
+    }
+}
+
+// *****************************************************************************
+// ******* ShareSubmitter ******************************************************
+// *****************************************************************************
+// Asynchronous submission of shares. Every URL has a fixed number of submitter
+// threads, i.e. the number of submissions in flight per pool is bounded. Failed
+// submissions are retried with exponential backoff and, if enabled, resubmitted to
+// the backup servers. Results and latencies are counted per URL.
+class ShareSubmitter {
+    public static int window = 4;		// submissions in flight per URL
+    public static int maxRetries = 3;
+    public static long retryDelay = 500;	// first backoff in ms, doubled for every retry
+    public static boolean failover = false;	// resubmit to the backup servers if all retries failed
+
+    private static final int latencySamples = 1024;
+    private static final ShareSubmitter[] submitters = new ShareSubmitter[BTCMiner.maxRpcCount];
+
+    private static final int maxLogEntries = 1024;	// audit log entries waiting for the validation of earlier shares
+    private static final TreeMap<Long,String> logEntries = new TreeMap<Long,String>();
+    private static long nextSequence = 0;
+    private static long nextLogged = 0;
+
+    private final int rpc;
+    private final ThreadPoolExecutor executor;
+
+    private int inFlight = 0;
+    private int acceptedCount = 0;
+    private int rejectedCount = 0;
+    private int staleCount = 0;
+    private int errorCount = 0;
+    private int failoverCount = 0;
+    private final long[] latency = new long[latencySamples];	// last submit latencies in ms
+    private int latencyCount = 0;
+
+// ******* constructor *********************************************************
+    private ShareSubmitter( final int rpc ) {
+	this.rpc = rpc;
+	executor = new ThreadPoolExecutor( window, window, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+	    public Thread newThread( Runnable r ) {
+		Thread t = new Thread( r, "share submitter " + rpc );
+		t.setDaemon( true );
+		return t;
+	    }
+	} );
+    }
+
+// ******* get *****************************************************************
+    public static synchronized ShareSubmitter get( int rpc ) {
+	if ( submitters[rpc] == null )
+	    submitters[rpc] = new ShareSubmitter( rpc );
+	return submitters[rpc];
+    }
+
+// ******* sequence ************************************************************
+// called by the poll loop thread if a share is found, returns the position of its audit log entry
+    public static synchronized long sequence() {
+	return nextSequence++;
+    }
+
+// ******* submit **************************************************************
+// queues the submission of the data (which already contains the nonce) to URL number rpc.
+// seq is the number returned by sequence when the share was found: the shares are validated
+// concurrently, but the audit log entries are written in the order the shares are found.
+    public static void submit( BTCMiner m, byte[] data, int rpc, long seq ) {
+	get( rpc ).queue( m, data, "submitted", true, seq );
+    }
+
+// ******* skip ****************************************************************
+// called if share seq is not submitted, e.g. because it failed the target check
+    public static void skip( long seq ) {
+	log( seq, null );
+    }
+
+// ******* log *****************************************************************
+// writes the audit log entry of share seq (null if there is none) after the entries of all 
+// earlier shares, entries with seq<0 are written immediately
+    private static synchronized void log( long seq, String s ) {
+	if ( BTCMiner.blkLogFile == null ) 
+	    return;
+	if ( seq < 0 ) {
+	    BTCMiner.blkLogFile.println( s );
+	    return;
+	}
+	if ( seq < nextLogged || logEntries.containsKey(seq) ) 
+	    return;
+	logEntries.put( seq, s );
+	while ( logEntries.size() > 0 && ( logEntries.firstKey() == nextLogged || logEntries.size() > maxLogEntries ) ) {	// a share that was never reported is skipped
+	    Map.Entry<Long,String> e = logEntries.pollFirstEntry();
+	    nextLogged = e.getKey() + 1;
+	    if ( e.getValue() != null ) 
+		BTCMiner.blkLogFile.println( e.getValue() );
+	}
+    }
+
+    private void queue( final BTCMiner m, final byte[] data, String logMsg, final boolean mayFailover, long seq ) {
+	log( seq, BTCMiner.dateFormat.format( new Date() ) + ": " + m.name + ": " + logMsg + " " + BTCMiner.dataToHexStr(data) + " to " + BTCMiner.rpcurl[rpc] );
+	executor.execute( new Runnable() {
+	    public void run() {
+		send( m, data, mayFailover );
+	    }
+	} );
+    }
+
+// ******* send ****************************************************************
+    private void send( BTCMiner m, byte[] data, boolean mayFailover ) {
+	synchronized ( this ) {
+	    inFlight++;
+	}
+	try {
+	    IOException ex = null;
+	    for ( int i=0; i<=maxRetries; i++ ) {
+		if ( i > 0 ) {
+		    try {
+			Thread.sleep( retryDelay << (i-1) );
+		    }
+		    catch ( InterruptedException e ) {
+		    }
+		}
+		long t = new Date().getTime();
+		try {
+		    BTCMiner.rejectReasonHeader.set( null );
+		    String response = BTCMiner.bitcoinRequest( m, BTCMiner.rpcurl[rpc], BTCMiner.rpcuser[rpc], BTCMiner.rpcpassw[rpc], "getwork", BTCMiner.dataToHexStr(data) );
+		    result( m, response, BTCMiner.rejectReasonHeader.get(), new Date().getTime() - t );
+		    return;
+		}
+		catch ( IOException e ) {
+		    ex = e;
+		    synchronized ( this ) {
+			errorCount++;
+		    }
+		}
+	    }
+
+	    m.ioErrorCount.incrementAndGet( rpc );
+	    PoolScheduler.failed( rpc );
+	    int r = -1;
+	    if ( mayFailover && failover ) {
+		long t = new Date().getTime();
+		for ( int i=1; i<BTCMiner.rpcCount && r<0; i++ ) {
+		    int j = (rpc + i) % BTCMiner.rpcCount;
+		    if ( m.disableTime[j] <= t ) 
+			r = j;
+		}
+	    }
+	    if ( r >= 0 ) {
+		m.msg( "Warning: " + ex.getLocalizedMessage() + ": Submission to " + BTCMiner.rpcurl[rpc] + " failed, resubmitting to " + BTCMiner.rpcurl[r] );
+		synchronized ( this ) {
+		    failoverCount++;
+		}
+		get( r ).queue( m, data, "resubmitted", false, -1 );
+	    }
+	    else {
+		m.msg( "Error: " + ex.getLocalizedMessage() + ": Submission to " + BTCMiner.rpcurl[rpc] + " failed after " + (maxRetries+1) + " attempts" );
+	    }
+	}
+	finally {
+	    synchronized ( this ) {
+		inFlight--;
+	    }
+	}
+    }
+
+// ******* result **************************************************************
+    private void result( BTCMiner m, String response, String rejectReason, long t ) {
+	String err = null;
+	String res = null;
+	try {
+	    JsonScanner json = new JsonScanner( response, "result", "error" );
+	    if ( ! json.isNull("error") ) 
+		err = json.get( "error" );
+	    if ( json.has("result") ) 
+		res = json.get( "result" );
+	}
+	catch ( ParserException e ) {
+	    err = e.getLocalizedMessage();
+	}
+	if ( err!=null && err.equals("") )
+	    err = null;
+	
+	boolean accepted = err==null && res!=null && res.trim().equalsIgnoreCase("true");
+	boolean stale = !accepted && ( ( rejectReason!=null && rejectReason.toLowerCase().indexOf("stale")>=0 ) || ( err!=null && err.toLowerCase().indexOf("stale")>=0 ) );
+	synchronized ( this ) {
+	    if ( accepted ) 
+		acceptedCount++;
+	    else if ( stale )
+		staleCount++;
+	    else 
+		rejectedCount++;
+	    latency[latencyCount % latencySamples] = t;
+	    latencyCount++;
+	}
+	
+	m.ioErrorCount.set( rpc, 0 );
+	PoolScheduler.submitted( rpc, t, accepted );
+	if ( err != null ) 
+	    m.msg( "Error attempting to submit new nonce: " + err );
+	m.submitted( t );
+    }
+
+// ******* info ****************************************************************
+    public synchronized String info() {
+	int n = Math.min( latencyCount, latencySamples );
+	long[] l = Arrays.copyOf( latency, n );
+	Arrays.sort( l );
+	int c = acceptedCount + rejectedCount + staleCount;
+	return "submitter " + BTCMiner.rpcurl[rpc] + ": in flight=" + inFlight + "/" + window + "  queued=" + executor.getQueue().size()
+	    + "  accepted=" + acceptedCount + "  rejected=" + rejectedCount + "  stale=" + staleCount 
+	    + ( c > 0 ? String.format(" (%.1f%% accepted)", acceptedCount*100.0/c) : "" )
+	    + ( errorCount > 0 ? "  errors=" + errorCount : "" ) + ( failoverCount > 0 ? "  resubmitted=" + failoverCount : "" )
+	    + ( n > 0 ? "  latency p50=" + l[n/2] + "ms p90=" + l[n*9/10] + "ms p99=" + l[n*99/100] + "ms" : "" );
+    }
+
+// ******* printInfo ***********************************************************
+    public static void printInfo( String prefix ) {
+	for ( int i=0; i<submitters.length; i++ ) {
+	    ShareSubmitter s;
+	    synchronized ( ShareSubmitter.class ) {
+		s = submitters[i];
+	    }
+	    if ( s != null )
+		BTCMiner.printMsg2( prefix + s.info() );
+	}
+    }
+}
+
+// *****************************************************************************
+// ******* PoolScheduler *******************************************************
+// *****************************************************************************
+// Selects the URL work is requested from. Every URL has a score which is derived
+// from the measured getwork and submit latencies, the error rate and the ratio of
+// rejected and stale shares. By default the best URL is used (the current one is
+// only replaced if another one is better by switchMargin, ties are resolved by the
+// order of the URLs). If weights are given, work is distributed between the enabled
+// URLs according to them (smooth weighted round robin). URLs which are disabled or
+// not in use are probed in the background, i.e. their scores stay up to date and
+// recovered URLs are enabled again before their disable time expires.
+class PoolScheduler {
+    public static double[] weights = null;	// null: use the best URL
+    public static int probeInterval = 30;	// in s, 0 disables probing
+    public static double switchMargin = 0.25;
+    public static double latencyScale = 1000.0;	// latency in ms which halves the score
+
+    private static final int n = BTCMiner.maxRpcCount;
+    private static final double[] getTime = new double[n];	// exponentially weighted averages
+    private static final double[] getTimeW = new double[n];
+    private static final double[] submitTime = new double[n];
+    private static final double[] submitTimeW = new double[n];
+    private static final double[] errors = new double[n];
+    private static final double[] errorsW = new double[n];
+    private static final double[] bad = new double[n];	// rejected and stale shares
+    private static final double[] badW = new double[n];
+    private static final double[] rrWeight = new double[n];	// current weights of the round robin
+    private static final int[] probeCount = new int[n];
+    private static final int[] recoverCount = new int[n];
+
+    private static final Set<BTCMiner> miners = Collections.newSetFromMap( new ConcurrentHashMap<BTCMiner,Boolean>() );
+    private static int current = 0;
+    private static int switchCount = 0;
+    private static Thread prober = null;
+
+// ******* getwork *************************************************************
+// called after a getwork request, t is the duration in ms
+    public static synchronized void getwork( int rpc, long t, boolean ok ) {
+	if ( ok ) {
+	    getTime[rpc] = getTime[rpc] * 0.95 + t;
+	    getTimeW[rpc] = getTimeW[rpc] * 0.95 + 1;
+	}
+	errors[rpc] = errors[rpc] * 0.95 + ( ok ? 0 : 1 );
+	errorsW[rpc] = errorsW[rpc] * 0.95 + 1;
+    }
+
+// ******* submitted ***********************************************************
+// called if the pool answered a submission, t is the latency in ms
+    public static synchronized void submitted( int rpc, long t, boolean accepted ) {
+	submitTime[rpc] = submitTime[rpc] * 0.95 + t;
+	submitTimeW[rpc] = submitTimeW[rpc] * 0.95 + 1;
+	bad[rpc] = bad[rpc] * 0.99 + ( accepted ? 0 : 1 );
+	badW[rpc] = badW[rpc] * 0.99 + 1;
+	errors[rpc] = errors[rpc] * 0.95;
+	errorsW[rpc] = errorsW[rpc] * 0.95 + 1;
+    }
+
+// ******* failed **************************************************************
+// called if a submission failed after all retries
+    public static synchronized void failed( int rpc ) {
+	errors[rpc] = errors[rpc] * 0.95 + 1;
+	errorsW[rpc] = errorsW[rpc] * 0.95 + 1;
+    }
+
+// ******* score ***************************************************************
+// 0 if nothing has been measured yet
+    public static synchronized double score( int rpc ) {
+	if ( getTimeW[rpc] < 1e-3 ) 
+	    return 0;
+	double l = getTime[rpc] / getTimeW[rpc] + ( submitTimeW[rpc] > 1e-3 ? submitTime[rpc] / submitTimeW[rpc] : 0 );
+	return ( 1 - errors[rpc]/Math.max(errorsW[rpc], 1) ) * ( 1 - bad[rpc]/Math.max(badW[rpc], 1) ) / ( 1 + l / latencyScale );
+    }
+
+// ******* select **************************************************************
+// returns the URL miner m should request work from or -1 if all URLs are disabled
+    public static int select( BTCMiner m ) {
+	long t = new Date().getTime();
+	if ( BTCMiner.rpcCount < 2 ) 
+	    return m.disableTime[0] > t ? -1 : 0;
+
+	miners.add( m );
+	startProber();
+
+	if ( weights != null ) {
+	    synchronized ( PoolScheduler.class ) {
+		int r = -1;
+		double sum = 0;
+		for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+		    double w = i < weights.length ? weights[i] : 0;
+		    if ( w <= 0 || m.disableTime[i] > t ) 
+			continue;
+		    rrWeight[i] += w;
+		    sum += w;
+		    if ( r < 0 || rrWeight[i] > rrWeight[r] ) 
+			r = i;
+		}
+		if ( r >= 0 ) {
+		    rrWeight[r] -= sum;
+		    return r;
+		}
+	    }
+	    // no enabled URL with a weight: fall through to the best one
+	}
+
+	int best = -1;
+	double bs = -1;
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+	    double s = score( i );
+	    if ( m.disableTime[i] <= t && s > bs ) {
+		best = i;
+		bs = s;
+	    }
+	}
+	if ( best < 0 ) 
+	    return -1;
+
+	synchronized ( PoolScheduler.class ) {
+	    if ( best == current ) 
+		return best;
+	    if ( m.disableTime[current] <= t && bs < score(current) * (1 + switchMargin) ) 
+		return current;
+	    if ( m.disableTime[current] <= t ) {	// switch only if the current URL is enabled, otherwise it is a per miner fail over
+		m.msg( "Switching from " + BTCMiner.rpcurl[current] + String.format(" (score %.3f)", score(current)) + " to " + BTCMiner.rpcurl[best] + String.format(" (score %.3f)", bs) );
+		current = best;
+		switchCount++;
+	    }
+	}
+	return best;
+    }
+
+// ******* startProber *********************************************************
+    private static synchronized void startProber() {
+	if ( prober != null || probeInterval <= 0 ) 
+	    return;
+	prober = new Thread( "pool prober" ) {
+	    public void run() {
+		while ( true ) {
+		    try {
+			sleep( probeInterval*1000L );
+		    }
+		    catch ( InterruptedException e ) {
+		    }
+		    for ( int i=0; i<BTCMiner.rpcCount; i++ ) 
+			probe( i );
+		}
+	    }
+	};
+	prober.setDaemon( true );
+	prober.start();
+    }
+
+// ******* probe ***************************************************************
+// requests work from URL rpc if it is not the one in use or is disabled by a miner
+    private static void probe( int rpc ) {
+	long t = new Date().getTime();
+	BTCMiner msgObj = null;
+	boolean disabled = false;
+	for ( BTCMiner m : miners ) {
+	    msgObj = m;
+	    disabled |= m.disableTime[rpc] > t;
+	}
+	if ( msgObj == null || ( !disabled && weights == null && rpc == current ) || ( !disabled && weights != null ) ) 
+	    return;
+
+	boolean ok = false;
+	try {
+	    String response = BTCMiner.bitcoinRequest( msgObj, BTCMiner.rpcurl[rpc], BTCMiner.rpcuser[rpc], BTCMiner.rpcpassw[rpc], "getwork", "" );
+	    new JsonScanner( response, "data" ).hexToData( "data", new byte[128] );
+	    ok = true;
+	}
+	catch ( Exception e ) {
+	}
+	long t2 = new Date().getTime();
+	getwork( rpc, t2-t, ok );
+	synchronized ( PoolScheduler.class ) {
+	    probeCount[rpc]++;
+	}
+	if ( !ok || !disabled ) 
+	    return;
+
+	for ( BTCMiner m : miners ) {
+	    if ( m.disableTime[rpc] > t2 ) {
+		m.disableTime[rpc] = 0;
+		m.ioErrorCount.set( rpc, 0 );
+	    }
+	}
+	synchronized ( PoolScheduler.class ) {
+	    recoverCount[rpc]++;
+	}
+	msgObj.msg( "URL " + BTCMiner.rpcurl[rpc] + " is responding again, enabled" );
+    }
+
+// ******* printInfo ***********************************************************
+    public static void printInfo( String prefix ) {
+	if ( BTCMiner.rpcCount < 2 ) 
+	    return;
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+	    String s;
+	    synchronized ( PoolScheduler.class ) {
+		s = "pool " + BTCMiner.rpcurl[i] + ( weights == null && i == current ? " (current)" : "" ) + ": score=" + String.format("%.3f", score(i))
+		    + ( getTimeW[i] > 1e-3 ? ",  getwork=" + String.format("%.0f", getTime[i]/getTimeW[i]) + "ms" : "" )
+		    + ( submitTimeW[i] > 1e-3 ? ",  submit=" + String.format("%.0f", submitTime[i]/submitTimeW[i]) + "ms" : "" )
+		    + ",  errors=" + String.format("%.1f", errors[i]/Math.max(errorsW[i], 1)*100) + "%"
+		    + ( badW[i] > 1e-3 ? ",  rejected/stale=" + String.format("%.1f", bad[i]/Math.max(badW[i], 1)*100) + "%" : "" )
+		    + ( probeCount[i] > 0 ? ",  probes=" + probeCount[i] : "" ) + ( recoverCount[i] > 0 ? ",  recovered=" + recoverCount[i] : "" )
+		    + ( i == 0 && switchCount > 0 ? ",  switches=" + switchCount : "" );
+	    }
+	    BTCMiner.printMsg2( prefix + s );
 	}
     }
 }
@@ -250,7 +1620,7 @@ class NewBlockMonitor extends Thread implements MsgObj {
 // *****************************************************************************
 // ******* BTCMinerThread ******************************************************
 // *****************************************************************************
-class BTCMinerThread extends Thread {
+class BTCMinerThread implements Runnable {
     private Vector<BTCMiner> miners = new Vector<BTCMiner>();
     private String busName;
     private PollLoop pollLoop = null;
@@ -269,7 +1639,8 @@ class BTCMinerThread extends Thread {
 
 	if ( pollLoop==null ) {
 	    BTCMiner.printMsg2("Starting mining thread for bus " + busName);
-	    start();
+	    pollLoop = new PollLoop(miners);
+	    new Thread( this, "mining thread " + busName ).start();
 	}
     }
 
@@ -304,7 +1675,6 @@ class BTCMinerThread extends Thread {
 
 // ******* run *****************************************************************
     public void run () {
-	pollLoop = new PollLoop(miners);
 	pollLoop.run();
 	pollLoop = null;
     }
@@ -342,6 +1712,7 @@ class BTCMinerThread extends Thread {
 // *****************************************************************************
 class BTCMinerCluster {
     public static int maxDevicesPerThread = 10;
+    public static boolean threadPerFpga = false;	// one platform thread per FPGA
 
     private Vector<BTCMinerThread> threads = new Vector<BTCMinerThread>();
     private Vector<BTCMiner> allMiners = new Vector<BTCMiner>();
@@ -381,6 +1752,14 @@ class BTCMinerCluster {
 		
 		BTCMiner.printMsg2("Total hash rate: " + String.format("%.1f",  e ) + " MH/s");
 		BTCMiner.printMsg2("Total submitted hash rate: " + String.format("%.1f",  d ) + " MH/s");
+		BTCMiner.printMsg2(ShareValidator.shared().info());
+		if ( WorkSource.batchSize > 0 ) 
+		    BTCMiner.printMsg2(WorkSource.shared().info());
+		ShareSubmitter.printInfo("");
+		PoolScheduler.printInfo("");
+		String ri = BTCMiner.newBlockMonitor.info();
+		if ( ri != null ) 
+		    BTCMiner.printMsg2(ri);
 		BTCMiner.printMsg2(" -------- ");
 		nextInfoTime = new Date().getTime() + infoInterval;
 	    }
@@ -634,6 +2013,193 @@ class LogString {
 }
 
 
+// *****************************************************************************
+// ******* NetworkStage ********************************************************
+// *****************************************************************************
+// Network side of a poll loop if the USB and network stages are separated: keeps
+// the work ring of every FPGA filled and hands the golden nonces from the share
+// rings over to the share validator. Both rings are single producer / single
+// consumer rings between this thread and the poll loop thread, i.e. the poll loop
+// only talks to the devices and is never blocked by the network. Work is taken
+// from the prefetcher or the work source without blocking and only requested for
+// rings with free slots. If there is nothing to do the thread waits for wakeup.
+class NetworkStage implements Runnable {
+    public static boolean enabled = false;
+    public static int depth = 2;		// work units per FPGA
+    public static final int shareRingSize = 64;
+    public static final long idleTimeout = 1000;	// in ms, e.g. for suspended miners
+
+    private static final Vector<NetworkStage> stages = new Vector<NetworkStage>();	// running stages
+
+    private final PollLoop pollLoop;
+    private volatile BTCMiner[] miners = new BTCMiner[0];
+    private final ConcurrentLinkedQueue<BTCMiner> removed = new ConcurrentLinkedQueue<BTCMiner>();	// share rings to be drained
+    private volatile boolean running = true;
+    private final Object signal = new Object();
+    private int signalCount = 0;
+
+    public int workCount = 0;		// work units put into the rings
+    public int shareCount = 0;		// golden nonces handed over to the validator
+    public double loopTime = 0.0;	// in ms
+    public double loopTimeW = 1e-6;
+
+// ******* constructor *********************************************************
+    public NetworkStage( PollLoop pollLoop ) {
+	this.pollLoop = pollLoop;
+    }
+
+// ******* setMiners ***********************************************************
+// called by the poll loop thread, creates the rings of new miners. The share rings of 
+// removed miners are drained by the network stage thread, the only consumer.
+    public void setMiners( Vector<BTCMiner> v ) {
+	BTCMiner[] a = v.toArray( new BTCMiner[v.size()] );
+	for ( BTCMiner m : a ) {
+	    if ( m.workRing == null ) {
+		m.shareRing = new SpscRing<ShareValidator.Share>( shareRingSize );
+		m.workRing = new SpscRing<WorkPrefetcher.Work>( depth );
+		m.stage = this;
+	    }
+	}
+	for ( BTCMiner m : miners ) {
+	    if ( ! v.contains(m) ) 
+		removed.add( m );
+	}
+	miners = a;
+	if ( ! removed.isEmpty() ) 
+	    wakeup();
+    }
+
+// ******* stop ****************************************************************
+// called by the poll loop thread, the share rings are drained before the thread terminates
+    public void stop( Vector<BTCMiner> v ) {
+	setMiners( v );
+	running = false;
+	wakeup();
+    }
+
+// ******* wakeup **************************************************************
+// wakes up the stage, called if work or golden nonces are available or if a work ring has room
+    public void wakeup() {
+	synchronized ( signal ) {
+	    signalCount++;
+	    signal.notifyAll();
+	}
+    }
+
+// ******* wakeupAll ***********************************************************
+// wakes up all network stages, e.g. if a new block is detected
+    public static void wakeupAll() {
+	synchronized ( stages ) {
+	    for ( NetworkStage st : stages ) 
+		st.wakeup();
+	}
+    }
+
+// ******* signalCount *********************************************************
+    private int signalCount() {
+	synchronized ( signal ) {
+	    return signalCount;
+	}
+    }
+
+// ******* drain ***************************************************************
+// hands the golden nonces of a share ring over to the validator, returns false if the ring was empty
+    private boolean drain( BTCMiner m ) {
+	ShareValidator.Share s;
+	boolean b = false;
+	while ( (s = m.shareRing.poll()) != null ) {
+	    ShareValidator.shared().add( s );
+	    synchronized ( this ) {
+		shareCount++;
+	    }
+	    b = true;
+	}
+	return b;
+    }
+
+// ******* await ***************************************************************
+// waits up to timeout ms unless wakeup was called after signalCount returned count
+    private void await( int count, long timeout ) {
+	synchronized ( signal ) {
+	    if ( signalCount == count ) {
+		try {
+		    signal.wait( timeout );
+		}
+		catch ( InterruptedException e ) {
+		}
+	    }
+	}
+    }
+
+// ******* run *****************************************************************
+// work is only requested if a work ring has room, i.e. the rings are the only work buffers
+    public void run() {
+	stages.add( this );
+	int pnc = BTCMiner.newBlockMonitor.newCount;
+	while ( running ) {
+	    int sc = signalCount();
+	    long t0 = new Date().getTime();
+	    int nc = BTCMiner.newBlockMonitor.newCount;
+	    boolean wake = nc != pnc;	// the poll loop drops the old work, new work follows
+	    pnc = nc;
+	    boolean busy = false;
+	    
+	    BTCMiner rm;
+	    while ( (rm = removed.poll()) != null ) 
+		drain( rm );
+	    for ( BTCMiner m : miners ) {
+		busy |= drain( m );
+		
+		int room = m.workRing.capacity() - m.workRing.size();
+		if ( m.suspended || m.fatalError != null || room <= 0 ) 
+		    continue;
+		WorkPrefetcher.Work w = m.pollWork( room );
+		if ( w == null ) 
+		    continue;
+		wake |= m.workRing.size() == 0;
+		if ( m.workRing.offer(w) ) {
+		    synchronized ( this ) {
+			workCount++;
+		    }
+		    busy = true;
+		}
+	    }
+
+	    if ( wake ) 
+		pollLoop.wakeup();
+	    synchronized ( this ) {
+		loopTime = loopTime * 0.999 + (new Date().getTime() - t0);
+		loopTimeW = loopTimeW * 0.999 + 1;
+	    }
+	    if ( ! busy ) 
+		await( sc, idleTimeout );
+	}
+
+	stages.remove( this );
+	BTCMiner rm;
+	while ( (rm = removed.poll()) != null ) 
+	    drain( rm );
+	for ( BTCMiner m : miners ) 
+	    drain( m );
+    }
+
+// ******* info ****************************************************************
+    public synchronized String info() {
+	int q = 0, c = 0, e = 0;
+	for ( BTCMiner m : miners ) {
+	    q += m.workRing.size();
+	    c += m.workRing.capacity();
+	    e += m.stageEmptyCount;		// number of times a FPGA found its work ring empty
+	    m.stageEmptyCount = 0;
+	}
+	String s = "network stage: work units=" + q + "/" + c + "  queued: " + workCount + "  empty: " + e + "  shares: " + shareCount 
+	    + "  loop time: " + String.format("%.1f", loopTime/loopTimeW) + "ms";
+	workCount = 0;
+	shareCount = 0;
+	return s;
+    }
+}
+
 // *****************************************************************************
 // ******* PollLoop ************************************************************
 // *****************************************************************************
@@ -645,6 +2211,11 @@ class PollLoop {
     private double timeW = 1e-6;
     private Vector<BTCMiner> v;
     public static final long minQueryInterval = 250;
+    public static long maxPollDelay = 0;	// adaptive polling: maximum time between two polls of a device in ms, 0: poll all devices every minQueryInterval
+    private int pollCount = 0;
+    private long pollCountTime = new Date().getTime();
+    private NetworkStage stage = null;
+    private volatile boolean wakeAll = false;
 
 // ******* constructor *********************************************************
     public PollLoop ( Vector<BTCMiner> pv ) {
@@ -656,22 +2227,47 @@ class PollLoop {
 	int maxIoErrorCount = (int) Math.round( (BTCMiner.rpcCount > 1 ? 2 : 4)*BTCMiner.connectionEffort );
 	int ioDisableTime = BTCMiner.rpcCount > 1 ? 60 : 30;
 	
+	if ( NetworkStage.enabled && ! scanMode ) {
+	    stage = new NetworkStage( this );
+	    synchronized ( v ) {
+		stage.setMiners( v );
+	    }
+	    Thread t = new Thread( stage, "network stage" );
+	    t.setDaemon( true );
+	    t.start();
+	}
+
+	int pnc = -2;
 	while ( v.size()>0 ) {
 	    long t0 = new Date().getTime();
 	    long tu = 0;
+	    int nc = BTCMiner.newBlockMonitor.newCount;
+	    boolean all = maxPollDelay <= 0 || nc != pnc || wakeAll;	// poll all devices, e.g. after a new block
+	    long next = t0 + ( maxPollDelay > 0 ? maxPollDelay : minQueryInterval );
+	    pnc = nc;
+	    wakeAll = false;
 
 	    if ( ! scanMode ) {
 		synchronized ( v ) {
+		    if ( stage != null ) 
+			stage.setMiners( v );
 		    for ( int i=v.size()-1; i>=0; i-- ) {
 			BTCMiner m = v.elementAt(i);
 			
+			if ( ! all && m.nextPollTime > t0 ) {
+			    next = Math.min( next, m.nextPollTime );
+			    continue;
+			}
+			
 			m.usbTime = 0;
+			pollCount++;
 			
 			try { 
 			    if ( ! m.suspended ) {
 				if ( m.checkUpdate() && m.getWork() ) { // getwork calls getNonces
 			    	    m.dmsg("Got new work");
 			    	    m.sendData();
+			    	    m.blockRestarted();
 				}
 				else {
 			    	    m.getNonces();
@@ -681,11 +2277,10 @@ class PollLoop {
 			    }
 			}
 			catch ( IOException e ) {
-			    m.ioErrorCount[m.rpcNum]++;
-			    if ( m.ioErrorCount[m.rpcNum] >= maxIoErrorCount ) {
+			    if ( m.ioErrorCount.incrementAndGet( m.rpcNum ) >= maxIoErrorCount ) {
     			        m.msg("Error: "+e.getLocalizedMessage() +": Disabling URL " + m.rpcurl[m.rpcNum] + " for " + ioDisableTime + "s");
     			        m.disableTime[m.rpcNum] = new Date().getTime() + ioDisableTime*1000;
-    			        m.ioErrorCount[m.rpcNum] = 0;
+    			        m.ioErrorCount.set( m.rpcNum, 0 );
 			    }
     			}
 			catch ( ParserException e ) {
@@ -707,6 +2302,10 @@ class PollLoop {
 			}
 
     			tu += m.usbTime;
+    			if ( maxPollDelay > 0 ) {
+    			    m.nextPollTime = new Date().getTime() + m.pollDelay();
+    			    next = Math.min( next, m.nextPollTime );
+    			}
     			
     			if ( ! m.clusterMode ) {
     			    BTCMiner.newBlockMonitor.print();
@@ -723,25 +2322,62 @@ class PollLoop {
 		t0 = 0;
 	    }
 	    
-	    t0 = minQueryInterval - t0;
-	    if ( t0 > 5 ) {
-		try {
-		    Thread.sleep( t0 );
+	    t0 = maxPollDelay > 0 ? next - new Date().getTime() : minQueryInterval - t0;
+	    if ( t0 > 5 && stage != null ) {
+		synchronized ( this ) {		// woken up by the network stage
+		    if ( ! wakeAll ) {
+			try {
+			    wait( t0 );
+			}
+			catch ( InterruptedException e ) {
+			}
+		    }
 		}
-		catch ( InterruptedException e) {
-		}	 
 	    }
+	    else if ( t0 > 5 ) 
+		BTCMiner.newBlockMonitor.waitForNew( nc, t0 );	// new blocks are processed immediately
 	}
+	if ( stage != null ) {
+	    synchronized ( v ) {
+		stage.stop( v );
+	    }
+	}
+    }
+
+// ******* wakeup **************************************************************
+// called by the network stage if new work is available, starts a poll of all devices
+    public synchronized void wakeup() {
+	wakeAll = true;
+	notifyAll();
     }
 
 // ******* printInfo ***********************************************************
     public void printInfo( String name ) {
-	int oc = 0;
-	double gt=0.0, gtw=0.0, st=0.0, stw=0.0;
+	int oc = 0, rc = 0, qs = 0, qm = 0, sc = 0, tc = 0, mc = 0;
+	double gt=0.0, gtw=0.0, st=0.0, stw=0.0, rt=0.0, rtw=0.0;
 	for ( int i=v.size()-1; i>=0; i-- ) {
 	    BTCMiner m = v.elementAt(i);
 	    oc += m.overflowCount;
 	    m.overflowCount = 0;
+	    rc += m.rollCount;
+	    m.rollCount = 0;
+
+	    WorkPrefetcher p = m.prefetcher;
+	    if ( p != null ) {
+		synchronized ( p ) {
+		    qs += p.size();
+		    qm += p.maxDepth;
+		    p.maxDepth = p.size();
+		    sc += p.staleCount;
+		    p.staleCount = 0;
+		    tc += p.takeCount;
+		    p.takeCount = 0;
+		    mc += p.missCount;
+		    p.missCount = 0;
+		    rt += p.refillTime;
+		    rtw += p.refillTimeW;
+		}
+	    }
 	    
 	    st += m.submitTime;
 	    stw += m.submitTimeW;
@@ -750,8 +2386,17 @@ class PollLoop {
 	    gtw += m.getTimeW;
 	}
 	    
+	long t = new Date().getTime();
+	double pr = pollCount * 1000.0 / Math.max( 1, t - pollCountTime ) / Math.max( 1, v.size() );
+	pollCount = 0;
+	pollCountTime = t;
 	BTCMiner.printMsg2(name + ": poll loop time: " + Math.round((usbTime+networkTime)/timeW) + "ms (USB: " + Math.round(usbTime/timeW) + "ms network: " + Math.round(networkTime/timeW) + "ms)   getwork time: " 
-		+  Math.round(gt/gtw) + "ms  submit time: " +  Math.round(st/stw) + "ms" );
+		+  Math.round(gt/gtw) + "ms  submit time: " +  Math.round(st/stw) + "ms" + ( rc > 0 ? "  ntime rolls: " + rc : "" ) + String.format("  polls: %.1f/s per device", pr) );
+	if ( rtw > 0 )
+	    BTCMiner.printMsg2(name + ": work prefetch: queue=" + qs + "/" + WorkPrefetcher.depth*v.size() + " (max " + qm + ")  refill time: " + Math.round(rt/rtw) 
+		+ "ms  misses: " + mc + "/" + tc + "  stale drops: " + sc );
+	if ( stage != null ) 
+	    BTCMiner.printMsg2(name + ": " + stage.info());
 	if ( oc > 0 )
 	    BTCMiner.printMsg( name + ": Warning: " + oc + " overflows occured. This is usually caused by a slow network connection." );
     }
@@ -775,9 +2420,15 @@ class BTCMiner implements MsgObj  {
     static int rpcCount = 1;
 
     static String longPollURL = null;
+    static int longPollRpcNum = -1;	// URL the long poll URL belongs to, -1 if unknown
+    static String[] longPollURLs = new String[maxRpcCount];	// long poll URLs of the servers
+
+    static final String[] httpHeaders = { "Cache-Control", "no-cache", "User-Agent", "ztexBTCMiner", "X-Mining-Extensions", "longpoll midstate rollntime submitold" };
     static String longPollUser = "";
     static String longPollPassw = "";
     
+    static String gbtAddress = null;
+
     static int bcid = -1;
 
     static String firmwareFile = null;
@@ -793,6 +2444,10 @@ class BTCMiner implements MsgObj  {
     static String in2FileName = null;
     
     static double connectionEffort = 2.0;
+
+    static final int defaultRollExpire = 60;	// in s, used if X-Roll-NTime does not specify expire=
+    static final ThreadLocal<String> rollNTimeHeader = new ThreadLocal<String>();  // X-Roll-NTime of the last httpGet of this thread
+    static final ThreadLocal<String> rejectReasonHeader = new ThreadLocal<String>();  // X-Reject-Reason of the last httpGet of this thread
     
     static NewBlockMonitor newBlockMonitor = null;
     
@@ -851,98 +2506,34 @@ class BTCMiner implements MsgObj  {
     }
 
     public static String encodeBase64(byte[] src) {
-	return encodeBase64(src, 0, src.length);
+	return Codec.base64Encode(src);
     }
 
     public static String encodeBase64(byte[] src, int start, int length) {
-        final String charSet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
-	byte[] encodeData = new byte[64];
-        byte[] dst = new byte[(length+2)/3 * 4 + length/72];
-        int x = 0;
-        int dstIndex = 0;
-        int state = 0;
-        int old = 0;
-        int len = 0;
-	int max = length + start;
-
-	for (int i = 0; i<64; i++) {
-	    byte c = (byte) charSet.charAt(i);
-	    encodeData[i] = c;
-	}
-	
-        for (int srcIndex = start; srcIndex<max; srcIndex++) {
-	    x = src[srcIndex];
-	    switch (++state) {
-	    case 1:
-	        dst[dstIndex++] = encodeData[(x>>2) & 0x3f];
-		break;
-	    case 2:
-	        dst[dstIndex++] = encodeData[((old<<4)&0x30) 
-	            | ((x>>4)&0xf)];
-		break;
-	    case 3:
-	        dst[dstIndex++] = encodeData[((old<<2)&0x3C) 
-	            | ((x>>6)&0x3)];
-		dst[dstIndex++] = encodeData[x&0x3F];
-		state = 0;
-		break;
-	    }
-	    old = x;
-	    if (++len >= 72) {
-	    	dst[dstIndex++] = (byte) '\n';
-	    	len = 0;
-	    }
-	}
-
-	switch (state) {
-	case 1: dst[dstIndex++] = encodeData[(old<<4) & 0x30];
-	   dst[dstIndex++] = (byte) '=';
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	case 2: dst[dstIndex++] = encodeData[(old<<2) & 0x3c];
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	}
-	return new String(dst);
+	char[] buf = new char[Codec.base64Length(length)];
+	Codec.base64Encode(src, start, length, buf, 0);
+	return new String(buf);
     }
 
 // ******* hexStrToData ********************************************************
     public static byte[] hexStrToData( String str ) throws NumberFormatException {
-	if ( str.length() % 2 != 0 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	byte[] buf = new byte[str.length() >> 1];
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
-	return buf;
+	return Codec.hexToBytes( str );
     }
 
     public static void hexStrToData( String str, byte[] buf ) throws NumberFormatException {
-	if ( str.length()<buf.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
+	Codec.hexToBytes( str, buf );
     }
 
 // ******* hexStrToData2 ********************************************************
     public static void hexStrToData2( String str, byte[] buf ) throws NumberFormatException {
-	if ( str.length()<buf.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) (Integer.parseInt( str.substring(i*2,i*2+1), 16) + Integer.parseInt( str.substring(i*2+1,i*2+2), 16)*16);
-	}
+	Codec.hexToBytes( str, buf );
+	for ( int i=0; i<buf.length; i++) 
+	    buf[i] = (byte) ( ((buf[i] & 15) << 4) | ((buf[i] >> 4) & 15) );
     }
 
 // ******* dataToHexStr ********************************************************
     public static String dataToHexStr (byte[] data)  {
-	final char hexchars[] = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-	char[] buf = new char[data.length*2];
-	for ( int i=0; i<data.length; i++) {
-	    buf[i*2+0] = hexchars[(data[i] & 255) >> 4];
-	    buf[i*2+1] = hexchars[(data[i] & 15)];
-	}
-	return new String(buf);
+	return Codec.bytesToHex( data );
     }
 
 // ******* dataToInt **********************************************************
@@ -983,39 +2574,10 @@ class BTCMiner implements MsgObj  {
     }
 
 // ******* jsonParse ***********************************************************
-// does not work if parameter name is a part of a parameter value
     public static String jsonParse (String response, String parameter) throws ParserException {
-	int lp = parameter.length();
-	int i = 0;
-	while ( i+lp<response.length() && !parameter.equalsIgnoreCase(response.substring(i,i+lp)) )
-	    i++;
-	i+=lp;
-	if ( i>=response.length() )
-	    throw new ParserException( "jsonParse: Parameter `"+parameter+"' not found" );
-	while ( i<response.length() && response.charAt(i) != ':' )
-	    i++;
-	i+=1;
-	while ( i<response.length() && (byte)response.charAt(i) <= 32 )
-	    i++;
-	if ( i>=response.length() )
-	    throw new ParserException( "jsonParse: Value expected after `"+parameter+"'" );
-	int j=i;
-	if ( i<response.length() && response.charAt(i)=='"' ) {
-	    i+=1;
-	    j=i;
-	    while ( j<response.length() && response.charAt(j) != '"' )
-		j++;
-	    if ( j>=response.length() )
-		throw new ParserException( "jsonParse: No closing `\"' found for value of paramter `"+parameter+"'" );
-	}
-	else { 
-	    while ( j<response.length() && response.charAt(j) != ',' && response.charAt(j) != /*{*/'}'  ) 
-		j++;
-	}
-	return response.substring(i,j);
+	return new JsonScanner( response, parameter ).get( parameter );
     } 
 
-
 // ******* checkSnString *******************************************************
 // make sure that snString is 10 chars long
     public static String checkSnString ( String snString ) {
@@ -1055,6 +2617,7 @@ class BTCMiner implements MsgObj  {
 
 
 // ******* sha256_transform ****************************************************
+// byte array version of Sha256.transform, the words are stored as by dataToInt
     public static void sha256_transform(byte[] state, int state_offs, byte[] data, int data_offs, byte[] out, int out_offs) throws NumberFormatException {
 	if ( state.length < state_offs+32 )
 	    throw new NumberFormatException("Invalid length of state");
@@ -1063,66 +2626,15 @@ class BTCMiner implements MsgObj  {
 	if ( out.length < out_offs+32 )
 	    throw new NumberFormatException("Invalid length of out");
 
-      final int[] k = {
-         0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
-         0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
-         0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
-         0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
-         0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
-         0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
-         0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
-         0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
-         0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
-         0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
-         0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
-         0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
-         0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
-         0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
-         0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
-         0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
-     };
-
-      int A = dataToInt(state,state_offs+0);
-      int B = dataToInt(state,state_offs+4);
-      int C = dataToInt(state,state_offs+8);
-      int D = dataToInt(state,state_offs+12);
-      int E = dataToInt(state,state_offs+16);
-      int F = dataToInt(state,state_offs+20);
-      int G = dataToInt(state,state_offs+24);
-      int H = dataToInt(state,state_offs+28);
-      int T, T2;
-      int[] wBuf = new int[64];
-
-      for (int i = 0; i < 16; i++) 
-         wBuf[i] = dataToInt(data, data_offs+4*i);
-
-      for (int i = 16; i < 64; i++) {
-         T = wBuf[i - 2];
-         T2 = wBuf[i - 15];
-         wBuf[i] = (((T >>> 17) | (T << 15)) ^ ((T >>> 19) | (T << 13)) ^ (T >>> 10)) + wBuf[i - 7] + (((T2 >>> 7) | (T2 << 25)) ^ ((T2 >>> 18) | (T2 << 14)) ^ (T2 >>> 3)) + wBuf[i - 16];
-      }
-
-      for (int i=0; i < 64; i++) {
-         T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + k[i] + wBuf[i];
-         T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
-         H = G;
-         G = F;
-         F = E;
-         E = D + T;
-         D = C;
-         C = B;
-         B = A;
-         A = T + T2;
-      }
-
-      intToData( A+dataToInt(state,state_offs+0), out, out_offs+0 );
-      intToData( B+dataToInt(state,state_offs+4), out, out_offs+4 );
-      intToData( C+dataToInt(state,state_offs+8), out, out_offs+8 );
-      intToData( D+dataToInt(state,state_offs+12), out, out_offs+12 );
-      intToData( E+dataToInt(state,state_offs+16), out, out_offs+16 );
-      intToData( F+dataToInt(state,state_offs+20), out, out_offs+20 );
-      intToData( G+dataToInt(state,state_offs+24), out, out_offs+24 );
-      intToData( H+dataToInt(state,state_offs+28), out, out_offs+28 );
+	int[] s = new int[8];
+	int[] w = new int[64];
+	for (int i=0; i<8; i++) 
+	    s[i] = dataToInt(state, state_offs+4*i);
+	for (int i=0; i<16; i++) 
+	    w[i] = dataToInt(data, data_offs+4*i);
+	Sha256.transform(s, w);
+	for (int i=0; i<8; i++) 
+	    intToData(s[i], out, out_offs+4*i);
    }
 
     public static void printBus ( ZtexScanBus1 bus ) {
@@ -1153,7 +2665,7 @@ class BTCMiner implements MsgObj  {
     public String fatalError = null;
     private boolean suspendSupported = false;
 
-    public int ioErrorCount[] = new int[maxRpcCount];
+    public final AtomicIntegerArray ioErrorCount = new AtomicIntegerArray( maxRpcCount );	// also updated by the network threads
     public long disableTime[] = new long[maxRpcCount];
         
     public int rpcNum = 0;
@@ -1165,14 +2677,26 @@ class BTCMiner implements MsgObj  {
     public Vector<LogString> logBuf = new Vector<LogString>();
 
     private byte[] dataBuf = new byte[128];
-    private byte[] dataBuf2 = new byte[128];
     private byte[] midstateBuf = new byte[32];
+    private int[] midstate = new int[8];	// midstateBuf as int's
+    private int[] dataWords = new int[16];	// second block of dataBuf as int's
+    private int[] hashState = new int[8];
+    private int[] hashW = new int[64];		// message schedule buffer for Sha256
+    private NonceVerifier verifier = null;	// for the current work
+    private int[] nonceMatch = null;		// offsets found by NonceVerifier.verify, per core
+    public static final int[] checkOffsets = { 0, 1, -1, 2, -2 };
     private byte[] sendBuf = new byte[44];
     private byte[] hashBuf = hexStrToData("00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000");
     private byte[] targetBuf = hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000");
     private double difficulity = 1.0;
     
     private int newCount = 0;
+    private int restartedCount = 0;	// block monitor count of the last work reported by blockRestarted
+
+    public long nextPollTime = 0;	// used by adaptive polling
+    private long nonceTime = 0;		// time of the last nonce counter reading
+    private double nonceRate = 0.0;	// nonces per ms and core, exponentially weighted
+    private double nonceRateW = 0.0;
 
     public boolean isRunning = false;
     public boolean suspended = false;
@@ -1196,6 +2720,16 @@ class BTCMiner implements MsgObj  {
     public long infoInterval = 15000;
     
     public long lastGetWorkTime = 0;
+    public long rollExpireTime = 0;	// ntime of the current work may be rolled until then
+    public int rollNTimeMax = 0;	// maximum ntime offset allowed
+    public int rollNTime = 0;		// current ntime offset
+    public int rollCount = 0;
+    
+    public WorkPrefetcher prefetcher = null;
+    public SpscRing<WorkPrefetcher.Work> workRing = null;	// from the network stage, see NetworkStage
+    public SpscRing<ShareValidator.Share> shareRing = null;	// to the network stage
+    public NetworkStage stage = null;
+    public int stageEmptyCount = 0;
     public long ignoreErrorTime = 0;
     public long lastInfoTime = 0;
         
@@ -1251,6 +2785,7 @@ class BTCMiner implements MsgObj  {
 	
 	goldenNonce = new int[numNonces*(1+extraSolutions)];
 	nonce = new int[numNonces];
+	nonceMatch = new int[numNonces];
 	hash7 = new int[numNonces];
 	
 	name = bitFileName+"-"+ztex.dev().snString();
@@ -1316,7 +2851,7 @@ class BTCMiner implements MsgObj  {
 	
 	for (int i=0; i<rpcCount; i++) {
 	    disableTime[i] = 0;
-	    ioErrorCount[i] = 0;
+	    ioErrorCount.set( i, 0 );
 	}
 	
 	if ( newBlockMonitor == null ) {
@@ -1326,6 +2861,22 @@ class BTCMiner implements MsgObj  {
     }
 
 
+// constructor of simulated devices without hardware, see test/ThreadModelBenchmark.java
+    protected BTCMiner ( String pName, int pNumNonces ) throws NoSuchAlgorithmException {
+	digest = MessageDigest.getInstance("SHA-256");
+	name = pName;
+	numNonces = pNumNonces;
+	goldenNonce = new int[numNonces*(1+extraSolutions)];
+	nonce = new int[numNonces];
+	hash7 = new int[numNonces];
+	startTime = new Date().getTime();
+	startTimeAdjust = startTime;
+	lastInfoTime = startTime;
+	if ( newBlockMonitor == null ) {
+	    newBlockMonitor = new NewBlockMonitor();
+	}
+    }
+
     public BTCMiner ( ZtexDevice1 pDev, String firmwareFile, boolean v ) throws UsbException, FirmwareException, NoSuchAlgorithmException {
 	this ( new Ztex1v1 ( pDev ), firmwareFile, v );
     }
@@ -1345,6 +2896,7 @@ class BTCMiner implements MsgObj  {
 
 	goldenNonce = new int[numNonces*(1+extraSolutions)];
 	nonce = new int[numNonces];
+	nonceMatch = new int[numNonces];
 	hash7 = new int[numNonces];
 	
 	name = bitFileName+"-"+ztex.dev().snString()+"-"+(fpgaNum+1);
@@ -1374,7 +2926,7 @@ class BTCMiner implements MsgObj  {
 	
 	for (int i=0; i<rpcCount; i++) {
 	    disableTime[i] = 0;
-	    ioErrorCount[i] = 0;
+	    ioErrorCount.set( i, 0 );
 	}
 	
     }
@@ -1442,82 +2994,57 @@ class BTCMiner implements MsgObj  {
 
 // ******* httpGet *************************************************************
     public static String httpGet(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
-	HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-        con.setRequestMethod("POST");
-        con.setConnectTimeout((int) Math.round(2000.0*BTCMiner.connectionEffort));
-        con.setReadTimeout(url == longPollURL ? 1000000 : (int) Math.round(2000.0*BTCMiner.connectionEffort));
-        con.setRequestProperty("Authorization", "Basic " + encodeBase64(user + ":" + passw));
-        con.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        con.setRequestProperty("Content-Type", "application/json");
-	con.setRequestProperty("Cache-Control", "no-cache");
-        con.setRequestProperty("User-Agent", "ztexBTCMiner");
-        con.setRequestProperty("X-Mining-Extensions", "longpoll midstate submitold");
-        con.setRequestProperty("Content-Length", "" + request.length());
-        con.setUseCaches(false);
-        con.setDoInput(true);
-        con.setDoOutput(true);
-        
-        // Send request
-        OutputStreamWriter wr = new OutputStreamWriter ( con.getOutputStream ());
-        wr.write(request);
-        wr.flush();
-        wr.close();
+	RpcClient.Response r = RpcClient.get( url, user, passw, (int) Math.round(2000.0*BTCMiner.connectionEffort), httpHeaders ).post( request, (int) Math.round(2000.0*BTCMiner.connectionEffort) );
+	if ( r.status >= 400 ) 
+	    throw new IOException( "Server returned HTTP response code: " + r.status + " for URL: " + url );
 
         // read response header
-        String str = con.getHeaderField("X-Reject-Reason");
+        String str = r.header("X-Reject-Reason");
+        rejectReasonHeader.set( str );
         if( str != null && ! str.equals("") && ! str.equals("high-hash") && ! str.equals("stale-prevblk") && ! str.equals("duplicate") ) {
             msgObj.msg("Warning: Rejected block: " + str);
         } 
 
         // read response header
-    	str = con.getHeaderField("X-Long-Polling");
-        if ( str != null && ! str.equals("") && longPollURL==null ) {
-    	    synchronized ( BTCMiner.newBlockMonitor ) {
-    		if ( longPollURL==null ) {
-    		    longPollURL = (str.length()>7 && str.substring(0,4).equalsIgnoreCase("http") ) ? str : url+str;
-    		    msgObj.msg("Using LongPolling URL " + longPollURL);
-    		    longPollUser = user;
-    		    longPollPassw = passw;
+    	rollNTimeHeader.set( r.header("X-Roll-NTime") );
+
+        // read response header
+    	str = r.header("X-Long-Polling");
+        if ( str != null && ! str.equals("") && ( longPollURL==null || longPollRpcNum>=0 ) ) {	// not if given by -lp
+    	    for ( int i=0; i<rpcCount; i++ ) {
+    		if ( longPollURLs[i]==null && url.equals(rpcurl[i]) ) {
+    		    synchronized ( BTCMiner.newBlockMonitor ) {
+    			if ( longPollURLs[i]==null ) {
+    			    longPollURLs[i] = (str.length()>7 && str.substring(0,4).equalsIgnoreCase("http") ) ? str : url+str;
+    			    msgObj.msg("Using LongPolling URL " + longPollURLs[i]);
+    			    if ( longPollURL==null ) {
+    				longPollURL = longPollURLs[i];
+    				longPollUser = user;
+    				longPollPassw = passw;
+    				longPollRpcNum = i;
+    			    }
+    			}
+    		    }
     		}
     	    }
         }
 
-        // read response	
-        InputStream is;
-        if ( con.getContentEncoding() == null )
-    	    is = con.getInputStream();
-    	else if ( con.getContentEncoding().equalsIgnoreCase("gzip") )
-    	    is = new GZIPInputStream(con.getInputStream());
-    	else if (con.getContentEncoding().equalsIgnoreCase("deflate") )
-            is = new InflaterInputStream(con.getInputStream());
-        else
-    	    throw new IOException( "httpGet: Unknown encoding: " + con.getContentEncoding() );
-
-        byte[] buf = new byte[1024];
-        StringBuffer response = new StringBuffer(); 
-        int len;
-        while ( (len = is.read(buf)) > 0 ) {
-            response.append(new String(buf,0,len));
-        }
-        is.close();
-        con.disconnect();
-        
-        return response.toString();
+        return r.body;
     }
 
-/*    String httpGet(String request) throws MalformedURLException, IOException {
-	return httpGet(rpcurl[rpcNum], rpcuser[rpcNum], rpcpassw[rpcNum], request )
-    } */
-
 // ******* bitcoinRequest ******************************************************
     public static String bitcoinRequest( MsgObj msgObj, String url, String user, String passw, String request, String params) throws MalformedURLException, IOException {
+	if ( StratumClient.isStratumUrl(url) )
+	    return StratumClient.get( url, user, passw, 1 ).request( request, params );
+	if ( gbtAddress != null )
+	    return BlockTemplateSource.get( url, user, passw, gbtAddress ).request( request, params );
 	bcid += 1;
 	return httpGet( msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\""+ request + "\",\"params\":["+ (params.equals("") ? "" : ("\""+params+"\"")) + "]}" );
     }
 
     public String bitcoinRequest( String request, String params) throws MalformedURLException, IOException {
 	String s = bitcoinRequest( this, rpcurl[rpcNum], rpcuser[rpcNum], rpcpassw[rpcNum], request, params );
-        ioErrorCount[rpcNum] = 0;
+        ioErrorCount.set( rpcNum, 0 );
         return s;
     }
 
@@ -1526,26 +3053,26 @@ class BTCMiner implements MsgObj  {
     public boolean getWork() throws UsbException, MalformedURLException, IOException, ParserException {
 
 	long t = new Date().getTime();
+
+	if ( isRunning && rollExpireTime > t && rollNTime < rollNTimeMax && newCount >= newBlockMonitor.newCount && disableTime[prevRpcNum] <= t ) {
+	    while ( getNonces() ) {}
+	    rollWork();
+	    return true;
+	}
     
-	int i = 0;
-	while ( i<rpcCount && (disableTime[i]>t) ) 
-	    i++;
-	if ( i >= rpcCount )
+	WorkPrefetcher.Work w = workRing != null ? takeStaged( t ) : nextWork( true );
+	if ( w == null )
 	    return false;
 
+	int i = w.rpcNum;
 	rpcNum = i;	
-	String response = bitcoinRequest("getwork","" );
-	t = new Date().getTime() - t;
-	getTime = getTime * 0.99 + t;
+	if ( w.error != null )
+	    throw w.error;
+	JsonScanner json = w.json != null ? w.json : new JsonScanner( w.response, "data", "target" );  // the latter reports the parse error
+	String rh = w.rollNTime;
+	getTime = getTime * 0.99 + w.getTime;
 	getTimeW = getTimeW * 0.99 + 1;
 
-        try {
-	    hexStrToData(jsonParse(response,"data"), dataBuf2);
-	    newBlockMonitor.checkNew( dataBuf2 );
-	}
-	catch ( NumberFormatException e ) {
-	}
-
 	if ( newCount >= newBlockMonitor.newCount || newBlockMonitor.submitOld ) {
 	    while ( getNonces() ) {}
         }
@@ -1553,17 +3080,19 @@ class BTCMiner implements MsgObj  {
 	newCount = newBlockMonitor.newCount;
 	
 	try {
-	    hexStrToData(jsonParse(response,"data"), dataBuf);
+	    json.hexToData("data", dataBuf);
 	}
 	catch ( NumberFormatException e ) {
 	    throw new ParserException( e.getLocalizedMessage() );
 	}
+	if ( w.rollOffset > 0 )		// work unit of the work source
+	    addNTime( w.rollOffset );
 
 	
 	
 	try {
 	    if ( targetCheck ) {
-		hexStrToData(jsonParse(response,"target"), targetBuf);
+		json.hexToData("target", targetBuf);
 	    }
 	    else {
 		hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000", targetBuf);
@@ -1592,37 +3121,124 @@ class BTCMiner implements MsgObj  {
 	    msg("Warning: Invalid data from " + rpcurl[rpcNum]);
 
 
-	sha256_transform( sha256_init_state,0, dataBuf,0, midstateBuf,0);
+	calcMidstate( midstate );
+	for ( int j=0; j<8; j++ )
+	    intToData( midstate[j], midstateBuf, j*4 );
+	initHashState();
 		
 	lastGetWorkTime = new Date().getTime();
 	prevRpcNum = i;
+
+	int expire = rollExpire( rh );
+	rollExpireTime = w.time + expire*1000L;
+	rollNTimeMax = w.rollMax >= 0 ? Math.min( w.rollMax, expire ) : expire;
+	rollNTime = 0;
 	return true;
     }
 
-// ******* submitWork **********************************************************
-    public void submitWork( int n ) throws MalformedURLException, IOException {
-	long t = new Date().getTime();
+// ******* nextWork ************************************************************
+// returns work from the work source or the prefetcher, if block is true and no work
+// is available it is requested now
+    public WorkPrefetcher.Work nextWork( boolean block ) {
+	WorkPrefetcher.Work w = null;
+	if ( clusterMode && WorkSource.batchSize > 0 ) {
+	    w = WorkSource.shared().take( this );
+	}
+	else {
+	    if ( prefetcher == null && WorkPrefetcher.depth > 0 )
+		prefetcher = new WorkPrefetcher( this );
+	    if ( prefetcher != null ) 
+		w = prefetcher.take( block ? WorkPrefetcher.maxWait : 0 );
+	}
+	if ( w == null && block ) 
+	    w = WorkPrefetcher.fetch( this );	// no prefetched work: request it now
+	return w;
+    }
 
-	intToData(n, dataBuf, 76);
+// ******* pollWork ************************************************************
+// called by the network stage: returns work from the work source or the prefetcher
+// or null, never blocks, room is the free space of the work ring
+    public WorkPrefetcher.Work pollWork( int room ) {
+	if ( clusterMode && WorkSource.batchSize > 0 ) 
+	    return WorkSource.shared().poll( this );
+	if ( prefetcher == null )
+	    prefetcher = new WorkPrefetcher( this );
+	return prefetcher.poll( room );
+    }
 
-	dmsg( "Submitting new nonce " + intToHexStr(n) );
-	if ( blkLogFile != null )
-	    blkLogFile.println( dateFormat.format( new Date() ) + ": " + name + ": submitted " + dataToHexStr(dataBuf) + " to " + rpcurl[rpcNum]);
-	String response = bitcoinRequest( "getwork", dataToHexStr(dataBuf) );
-	String err = null;
-	try {
-	    err = jsonParse(response,"error");
+// ******* takeStaged **********************************************************
+// returns the next valid work from the work ring or null, never blocks
+    private WorkPrefetcher.Work takeStaged( long t ) {
+	WorkPrefetcher.Work w;
+	while ( (w = workRing.poll()) != null ) {
+	    if ( w.error != null || ( w.newCount >= newBlockMonitor.newCount && w.time + maxPollInterval > t && disableTime[w.rpcNum] <= t ) )
+		break;
 	}
-	catch ( ParserException e ) {
+	if ( w == null ) 
+	    stageEmptyCount++;
+	stage.wakeup();		// the ring has room now
+	return w;
+    }
+
+// ******* rollExpire **********************************************************
+// returns the time in s the ntime may be rolled according to a X-Roll-NTime header, 0 if not allowed
+    public static int rollExpire ( String h ) {
+	if ( h == null ) 
+	    return 0;
+	h = h.trim();
+	int j = h.toLowerCase().indexOf("expire=");
+	if ( j >= 0 ) {
+	    int k = j + 7;
+	    while ( k<h.length() && Character.isDigit(h.charAt(k)) ) 
+		k++;
+	    try {
+		return Integer.parseInt( h.substring(j+7,k) );
+	    }
+	    catch ( NumberFormatException e ) {
+		return 0;
+	    }
 	}
-	if ( err!=null && !err.equals("null") && !err.equals("") ) 
-	    msg( "Error attempting to submit new nonce: " + err );
+	return ( h.equalsIgnoreCase("y") || h.equalsIgnoreCase("yes") || h.equalsIgnoreCase("true") || h.equals("1") ) ? defaultRollExpire : 0;
+    }
+
+// ******* rollWork ************************************************************
+// derives new work from the current one by incrementing the timestamp. The
+// timestamp is in the second block of the header, i.e. the midstate does not
+// change, only the data words and the nonce verifier have to be updated.
+    private void rollWork () {
+	rollNTime += 1;
+	addNTime( 1 );
+	initHashState();
+	rollCount += 1;
+	dmsg( "Rolled ntime: +" + rollNTime + "s" );
+    }
 
-	for (int i=lastGoldenNonces.length-1; i>0; i-- )
-	    lastGoldenNonces[i]=lastGoldenNonces[i-1];
-	lastGoldenNonces[0] = n;
+// ******* addNTime ************************************************************
+// adds s seconds to the timestamp of the work. The header words of getwork data
+// are stored big endian, dataToInt reads little endian.
+    private void addNTime ( int s ) {
+	intToData( Integer.reverseBytes( Integer.reverseBytes(dataToInt(dataBuf, 68)) + s ), dataBuf, 68 );
+    }
+
+// ******* submitWork **********************************************************
+    public void submitWork( int n ) {
+	submitWork( dataBuf.clone(), n, rpcNum, ShareSubmitter.sequence() );
+    }
+
+// queues nonce n of the given work for submission to URL number rpc, called by the share validator threads,
+// seq is the audit log position, see ShareSubmitter.sequence
+    public synchronized void submitWork( byte[] data, int n, int rpc, long seq ) {
+	intToData(n, data, 76);
+	dmsg( "Submitting new nonce " + intToHexStr(n) );
+	ShareSubmitter.submit( this, data, rpc, seq );
+    }
+
+// ******* submitted ***********************************************************
+// called by the share submitter if the pool answered, t is the submit latency in ms
+    public synchronized void submitted( long t ) {
+	submittedCount+=1;
+	totalSubmittedCount+=difficulity;
 
-	t = new Date().getTime() - t;
 	submitTime = submitTime * 0.99 + t;
 	submitTimeW = submitTimeW * 0.99 + 1;
     }
@@ -1637,27 +3253,101 @@ class BTCMiner implements MsgObj  {
 	    dataBuf[i] = data[i];
 	for (int i=0; i<32; i++)
 	    midstateBuf[i] = midstate[i];
+	for (int i=0; i<8; i++)
+	    this.midstate[i] = dataToInt(midstateBuf, i*4);
+	initHashState();
+    }
+
+// ******* initHashState *******************************************************
+// caches the second data block as int's, has to be called if dataBuf changes
+    private void initHashState () {
+	for (int i=0; i<16; i++)
+	    dataWords[i] = dataToInt(dataBuf, 64+i*4);
+	verifier = new NonceVerifier(midstate, dataWords);
+    }
+
+// ******* calcMidstate ********************************************************
+    private void calcMidstate (int[] state) {
+	Sha256.init(state);
+	for (int i=0; i<16; i++)
+	    hashW[i] = dataToInt(dataBuf, i*4);
+	Sha256.transform(state, hashW);
+    }
+
+// ******* hash ****************************************************************
+// double SHA-256 of the data with nonce n, result in hashState
+    private void hash (int n) {
+	System.arraycopy(midstate, 0, hashState, 0, 8);
+	System.arraycopy(dataWords, 0, hashW, 0, 16);
+	hashW[3] = n;
+	Sha256.transform(hashState, hashW);
+
+	System.arraycopy(hashState, 0, hashW, 0, 8);
+	hashW[8] = 0x80000000;
+	for (int i=9; i<15; i++)
+	    hashW[i] = 0;
+	hashW[15] = 256;
+	Sha256.init(hashState);
+	Sha256.transform(hashState, hashW);
     }
 
 // ******* getHash ***********************************************************
     public int getHash(int n) throws NumberFormatException {
-	intToData(n, dataBuf, 76);
-	sha256_transform( midstateBuf,0, dataBuf,64, hashBuf,0 );
-	sha256_transform( sha256_init_state,0, hashBuf,0, hashBuf,0 );
-	return dataToInt( hashBuf,28 );
+	if ( verifier == null )
+	    initHashState();
+	return verifier.hash7(n);
     } 
 
 // ******* compareWithTarget ***************************************************
     // returns true if smaller than or equal to target
     public boolean compareWithTarget(int n) throws NumberFormatException {
-	intToData(n, dataBuf, 76);
-	sha256_transform( midstateBuf,0, dataBuf,64, hashBuf,0 );
-	sha256_transform( sha256_init_state,0, hashBuf,0, hashBuf,0 );
+	hash(n);
+	for ( int i=0; i<8; i++ )
+	    intToData( hashState[i], hashBuf, i*4 );
+	return compareWithTarget( hashBuf, targetBuf );
+    }
+
+    // scratch buffers of compareWithTarget(byte[],int,byte[]), one set per validator thread
+    private static class HashScratch {
+	final int[] s = new int[8];
+	final int[] w = new int[64];
+	final byte[] hash = new byte[32];
+    }
+    private static final ThreadLocal<HashScratch> hashScratch = ThreadLocal.withInitial( HashScratch::new );
+
+    // thread safe version for the given data, does not modify data
+    public static boolean compareWithTarget(byte[] data, int n, byte[] target) throws NumberFormatException {
+	HashScratch hs = hashScratch.get();
+	int[] s = hs.s;
+	int[] w = hs.w;
+	byte[] hash = hs.hash;
+	Sha256.init(s);
+	for ( int i=0; i<16; i++ )
+	    w[i] = dataToInt(data, i*4);
+	Sha256.transform(s, w);
+	for ( int i=0; i<16; i++ )
+	    w[i] = dataToInt(data, 64+i*4);
+	w[3] = n;
+	Sha256.transform(s, w);
+	for ( int i=0; i<8; i++ )
+	    w[i] = s[i];
+	w[8] = 0x80000000;
+	for ( int i=9; i<15; i++ )
+	    w[i] = 0;
+	w[15] = 256;
+	Sha256.init(s);
+	Sha256.transform(s, w);
+	for ( int i=0; i<8; i++ )
+	    intToData( s[i], hash, i*4 );
+	return compareWithTarget( hash, target );
+    }
+
+    private static boolean compareWithTarget(byte[] hash, byte[] target) {
 	for ( int i=0; i<32; i++ ) {
 	    int j=i+3-2*(i%4);
-	    if ( (hashBuf[31-j] & 255) < (targetBuf[31-i] & 255) )
+	    if ( (hash[31-j] & 255) < (target[31-i] & 255) )
 		return true;
-	    if ( (hashBuf[31-j] & 255) > (targetBuf[31-i] & 255) )
+	    if ( (hash[31-j] & 255) > (target[31-i] & 255) )
 		return false;
 	}
 	return true;
@@ -1665,7 +3355,9 @@ class BTCMiner implements MsgObj  {
 
 // ******* getMidstate *********************************************************
     public byte[] getMidstate() {
-	sha256_transform( sha256_init_state,0, dataBuf,0, hashBuf,0);
+	calcMidstate( hashState );
+	for ( int i=0; i<8; i++ )
+	    intToData( hashState[i], hashBuf, i*4 );
 	return hashBuf;
     }
 
@@ -1691,6 +3383,7 @@ class BTCMiner implements MsgObj  {
         ignoreErrorTime = new Date().getTime() + 500; // ignore errors for next 1s
 	for ( int i=0; i<numNonces; i++ ) 
 	    nonce[i] = 0;
+	nonceTime = t;
         isRunning = true;
     }
 
@@ -1812,10 +3505,14 @@ class BTCMiner implements MsgObj  {
         if ( ignoreErrorTime < new Date().getTime() ) {
 	    errorCount[freqM] *= 0.995;
     	    errorWeight[freqM] = errorWeight[freqM]*0.995 + 1.0;
-            for ( int i=0; i<numNonces; i++ ) {
-        	if ( ! checkNonce( nonce[i], hash7[i] ) )
-    		    errorCount[freqM] +=1.0/numNonces;
-    	    }
+    	    if ( verifier == null )
+    		initHashState();
+	    verifier.verify( nonce, hash7, numNonces, checkOffsets, nonceMatch );
+	    for ( int i=0; i<numNonces; i++ ) {
+		if ( nonceMatch[i] == NonceVerifier.noMatch ) 
+		    errorCount[freqM] += 1.0/numNonces;
+		else nonce[i] += nonceMatch[i];		// the nonce the hash belongs to, i.e. the position of the core
+	    }
     	    
 	    errorRate[freqM] = errorCount[freqM] / errorWeight[freqM] * Math.min(1.0, errorWeight[freqM]*0.01) ;
     	    if ( errorRate[freqM] > maxErrorRate[freqM] )
@@ -1828,22 +3525,49 @@ class BTCMiner implements MsgObj  {
         for ( int i=0; i<numNonces*(1+extraSolutions); i++ ) {
     	    int n = goldenNonce[i];
     	    if ( n != -offsNonces ) {
-    		if ( compareWithTarget(n) ) {
-    		    int j=0;
-    		    while ( j<lastGoldenNonces.length && lastGoldenNonces[j]!=n )
-    			j++;
-        	    if  (j>=lastGoldenNonces.length) {
-        	        submitWork( n );
-        		submittedCount+=1;
-        		totalSubmittedCount+=difficulity;
-        	        submitted = true;
-        	    }
-    		}
+    		int j=0;
+    		while ( j<lastGoldenNonces.length && lastGoldenNonces[j]!=n )
+    		    j++;
+        	if  (j>=lastGoldenNonces.length) {
+		    for (j=lastGoldenNonces.length-1; j>0; j-- )
+			lastGoldenNonces[j]=lastGoldenNonces[j-1];
+		    lastGoldenNonces[0] = n;
+        	    validateShare( n );
+        	    submitted = true;
+        	}
     	    }
         }
         return submitted;
     } 
 
+// ******* validateShare *******************************************************
+// target check and submission of nonce n by the share validator
+    private void validateShare( final int n ) {
+	final byte[] data = dataBuf.clone();
+	final byte[] target = targetBuf.clone();
+	final int rpc = rpcNum;
+	final long seq = ShareSubmitter.sequence();
+	ShareValidator.Share s = new ShareValidator.Share() {
+	    public boolean valid() {
+		boolean v = compareWithTarget( data, n, target );
+		if ( ! v ) 
+		    ShareSubmitter.skip( seq );
+		return v;
+	    }
+	    public void submit() {
+		submitWork( data, n, rpc, seq );
+	    }
+	    public void failed( Exception e ) {
+		ShareSubmitter.skip( seq );
+		ioErrorCount.incrementAndGet( rpc );
+		msg( "Error: " + e.getLocalizedMessage() + ": Submission of nonce " + intToHexStr(n) + " failed" );
+	    }
+	};
+	if ( shareRing != null && shareRing.offer(s) ) 
+	    stage.wakeup();
+	else ShareValidator.shared().add( s );			// if the ring is full the validator queue is used directly
+    }
+
 // ******* getNoncesInt ********************************************************
     public void getNoncesInt() throws UsbException {
 	int bs = 12+extraSolutions*4;
@@ -1864,6 +3588,7 @@ class BTCMiner implements MsgObj  {
         usbTime += new Date().getTime() - t;
         
 //	System.out.print(dataToHexStr(buf)+"            ");
+	int n0 = nonce[0];
         for ( int i=0; i<numNonces; i++ ) {
 	    goldenNonce[i*(1+extraSolutions)] = dataToInt(buf,i*bs+0) - offsNonces;
 	    int j = dataToInt(buf,i*bs+4) - offsNonces;
@@ -1875,14 +3600,38 @@ class BTCMiner implements MsgObj  {
 	}
 	if ( overflow && ! PollLoop.scanMode )
 	    overflowCount += 1;
+
+	if ( ! overflow && nonceTime > 0 && t > nonceTime ) {
+	    nonceRate = nonceRate * 0.95 + (nonce[0] - n0 & 0xffffffffL) / (double) (t - nonceTime);
+	    nonceRateW = nonceRateW * 0.95 + 1;
+	}
+	nonceTime = t;
+    }
+
+// ******* pollDelay ***********************************************************
+// Time in ms until the device should be polled again for adaptive polling: before
+// the nonce counters reach the lowest threshold of checkUpdate and before more golden
+// nonces of a core are due than the device can buffer. The nonce rate is measured,
+// or estimated from the frequency if no measurement is available yet.
+    public long pollDelay() {
+	if ( !isRunning ) 
+	    return PollLoop.minQueryInterval;
+	double r = nonceRateW > 0.5 ? nonceRate/nonceRateW : (freqM+1)*freqM1*hashesPerClock*1000.0/numNonces;
+	if ( r <= 0 ) 
+	    return PollLoop.minQueryInterval;
+	double d = 4.294967296e9 / r * ( extraSolutions > 0 ? 0.05 : 0.01 );	// probability that a golden nonce is overwritten stays below 1%
+	for ( int i=0; i<numNonces; i++ ) {
+	    double l = ( 0x70000000L - (nonce[i] & 0xffffffffL) ) / r;
+	    if ( l < d ) 
+		d = l;
+	}
+	return Math.max( 20, Math.min( PollLoop.maxPollDelay, Math.round(d) ) );
     }
 
 // ******* checkNonce *******************************************************
     public boolean checkNonce( int n, int h ) throws UsbException {
-	int offs[] = { 0, 1, -1, 2, -2 };
-//	int offs[] = { 0 };
-	for (int i=0; i<offs.length; i++ ) {
-	    if ( getHash(n + offs[i]) == h + 0x5be0cd19 )
+	for (int i=0; i<checkOffsets.length; i++ ) {
+	    if ( getHash(n + checkOffsets[i]) == h + 0x5be0cd19 )
 		return true;
     	}
         return false;
@@ -1940,6 +3689,14 @@ class BTCMiner implements MsgObj  {
 	submittedCount = 0;
 	
 	printMsg2(name + ": " + sb.toString());
+	if ( ! clusterMode ) {
+	    printMsg2(name + ": " + ShareValidator.shared().info());
+	    ShareSubmitter.printInfo(name + ": ");
+	    PoolScheduler.printInfo(name + ": ");
+	    String ri = newBlockMonitor.info();
+	    if ( ri != null ) 
+		printMsg2(name + ": " + ri);
+	}
 	    
 	lastInfoTime = t;
     }
@@ -1984,14 +3741,23 @@ class BTCMiner implements MsgObj  {
     	}
     }
     
-// ******* checkUpdate **********************************************************
+// ******* blockRestarted ******************************************************
+// called after work has been sent, reports the first work of a new block to the block monitor
+    public void blockRestarted() {
+	if ( restartedCount != newCount ) {
+	    restartedCount = newCount;
+	    newBlockMonitor.restarted( newCount );
+	}
+    }
+
+// ******* checkUpdate *********************************************************
     public boolean checkUpdate() {
 	long t = new Date().getTime();
 	if ( !isRunning ) return true;
 	if ( ignoreErrorTime > t ) return false;
 	if ( newCount < newBlockMonitor.newCount) return true;
 	if ( disableTime[prevRpcNum] > t ) return true;
-	if ( lastGetWorkTime + maxPollInterval < t ) return true;
+	if ( lastGetWorkTime + maxPollInterval < t && rollExpireTime <= t ) return true;
 	for ( int i=0; i<numNonces ; i++ )
 	    if ( ((nonce[i]>>1) & 0x7fffffff) > (0x38000000 + Math.round(Math.random()*0x10000000)) ) return true;
 	return false;
@@ -2172,6 +3938,20 @@ class BTCMiner implements MsgObj  {
 		        throw new ParameterException("<URL> <user name> <password> expected after -lp");
 		    }
 		}
+	        else if ( args[i].equals("-gbt") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+    			gbtAddress = args[i];
+			BlockTemplateSource.payoutScript(gbtAddress);
+		    } 
+		    catch (IOException e) {
+		        throw new ParameterException(e.getLocalizedMessage());
+		    }
+		    catch (Exception e) {
+		        throw new ParameterException("Payout address expected after -gbt");
+		    }
+		}
 	        else if ( args[i].equals("-f") ) {
 	    	    i++;
 		    try {
@@ -2250,6 +4030,9 @@ class BTCMiner implements MsgObj  {
 		        throw new ParameterException("Number expected after -n");
 		    }
 		}
+	        else if ( args[i].equals("-vt") ) {
+		    BTCMinerCluster.threadPerFpga = true;
+		}
 	        else if ( args[i].equals("-oh") ) {
 	    	    i++;
 		    try {
@@ -2270,6 +4053,86 @@ class BTCMiner implements MsgObj  {
 		        throw new ParameterException("Number expected after -t");
 		    }
 		}
+	        else if ( args[i].equals("-pf") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			WorkPrefetcher.depth = Integer.parseInt( args[i] );
+			if ( WorkPrefetcher.depth < 0 ) WorkPrefetcher.depth = 0;
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -pf");
+		    }
+		}
+	        else if ( args[i].equals("-ap") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			PollLoop.maxPollDelay = Math.max( 0, Long.parseLong( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -ap");
+		    }
+		}
+	        else if ( args[i].equals("-sp") ) {
+		    NetworkStage.enabled = true;
+		}
+	        else if ( args[i].equals("-ws") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			WorkSource.batchSize = Math.max( 0, Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -ws");
+		    }
+		}
+	        else if ( args[i].equals("-pw") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			String[] a = args[i].split(",");
+			PoolScheduler.weights = new double[a.length];
+			for ( int j=0; j<a.length; j++ ) 
+			    PoolScheduler.weights[j] = Double.parseDouble( a[j].trim() );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Comma separated list of numbers expected after -pw");
+		    }
+		}
+	        else if ( args[i].equals("-pp") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			PoolScheduler.probeInterval = Math.max( 0, Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -pp");
+		    }
+		}
+	        else if ( args[i].equals("-sw") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			ShareSubmitter.window = Math.max( 1, Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -sw");
+		    }
+		}
+	        else if ( args[i].equals("-sr") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			ShareSubmitter.maxRetries = Math.max( 0, Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -sr");
+		    }
+		}
+		else if ( args[i].equals("-sf") ) {
+		    ShareSubmitter.failover = true;
+		} 
 	        else if ( args[i].equals("-e") ) {
 	    	    i++;
 		    try {
@@ -2291,6 +4154,8 @@ class BTCMiner implements MsgObj  {
 	    
 	    if ( BTCMinerCluster.maxDevicesPerThread < 1 )
 		BTCMinerCluster.maxDevicesPerThread = 127;
+	    if ( BTCMinerCluster.threadPerFpga )
+		BTCMinerCluster.maxDevicesPerThread = 1;
 		
 	    if ( mode != 'c' && filterSN != null)
 		filterSN = checkSnString(filterSN);
@@ -0,0 +1,420 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import ztex.Codec;
+
+// Work source for solo mining based on getblocktemplate. The template is fetched
+// once per block or transaction update (long polling, or after maxTemplateAge if
+// the node does not support it) and every getwork request is answered from memory
+// with a unique header: the coinbase gets a new extranonce and the merkle root is
+// recomputed from the cached branch. Solutions are assembled to full blocks and
+// sent with submitblock. Work and submissions use the getwork data format.
+public class BlockTemplateSource {
+
+    public static final int rpcTimeout = 20000;          // in ms
+    public static final int longPollTimeout = 1800000;   // in ms
+    public static final long maxTemplateAge = 30000;     // in ms
+    public static final int maxWorks = 4096;             // number of generated works that can be submitted
+
+    private static final HashMap<String,BlockTemplateSource> sources = new HashMap<String,BlockTemplateSource>();
+
+    private static final String pad = "000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+
+    private static class Template {
+        int version, height;
+        long time, coinbaseValue;
+        String prevHash, bits, target, longPollId, witnessCommitment;
+        String[] txData;
+        byte[][] merkleBranch;
+        long fetchTime;
+    }
+
+    private static class Work {
+        final Template template;
+        final byte[] coinbase;   // with witness if the template requires it
+        final byte[] coinbaseTx; // without witness
+
+        Work(Template template, byte[] coinbase, byte[] coinbaseTx) {
+            this.template = template;
+            this.coinbase = coinbase;
+            this.coinbaseTx = coinbaseTx;
+        }
+    }
+
+    private final String url, user, passw;
+    private final byte[] payoutScript;
+    private int rpcId = 0;
+
+    private Template template = null;
+    private long extranonce = 0;
+    private boolean longPollRunning = false;
+    private final LinkedHashMap<String,Work> works = new LinkedHashMap<String,Work>() {
+        protected boolean removeEldestEntry(Map.Entry<String,Work> e) {
+            return size() > maxWorks;
+        }
+    };
+
+    // payout: base58 P2PKH/P2SH address or hex:<scriptPubKey>
+    public BlockTemplateSource(String url, String user, String passw, String payout) throws IOException {
+        this.url = url;
+        this.user = user;
+        this.passw = passw;
+        payoutScript = payoutScript(payout);
+    }
+
+// ******* get *****************************************************************
+    public static BlockTemplateSource get(String url, String user, String passw, String payout) throws IOException {
+        String key = url + "\n" + user;
+        synchronized (sources) {
+            BlockTemplateSource s = sources.get(key);
+            if (s == null) {
+                s = new BlockTemplateSource(url, user, passw, payout);
+                sources.put(key, s);
+            }
+            return s;
+        }
+    }
+
+// ******* request *************************************************************
+    // getwork emulation: without params new work is returned, otherwise params is submitted as block
+    public String request(String method, String params) throws IOException {
+        if (!method.equals("getwork"))
+            throw new IOException("getblocktemplate: unsupported request: " + method);
+        if (params == null || params.equals("")) {
+            String d = getWork();
+            return "{\"result\":{\"data\":\"" + d + "\",\"target\":\"" + target() + "\"},\"error\":null,\"id\":0}";
+        }
+        String err = submit(params);
+        return "{\"result\":" + (err == null) + ",\"error\":" + (err == null ? "null" : "\"" + err.replace('"', '\'') + "\"") + ",\"id\":0}";
+    }
+
+// ******* rpc *****************************************************************
+    private Object rpc(String method, String params, int timeout) throws IOException {
+        int id;
+        synchronized (this) {
+            id = ++rpcId;
+        }
+        RpcClient.Response res = RpcClient.get(url, user, passw, rpcTimeout).post(
+            "{\"jsonrpc\":\"1.0\",\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":[" + params + "]}", timeout);
+        if (res.body.length() == 0)  // bitcoind reports RPC errors with HTTP status 500 and a JSON body
+            throw new IOException(method + " failed: HTTP response code " + res.status);
+
+        Map<?,?> r = (Map<?,?>) StratumClient.parseJson(res.body);
+        if (r.get("error") != null)
+            throw new IOException(method + " failed: " + r.get("error"));
+        return r.get("result");
+    }
+
+// ******* fetch ***************************************************************
+    private Template fetch(String longPollId) throws IOException {
+        Map<?,?> r = (Map<?,?>) rpc("getblocktemplate", "{\"rules\":[\"segwit\"]" + (longPollId != null ? ",\"longpollid\":\"" + longPollId + "\"" : "") + "}",
+            longPollId != null ? longPollTimeout : rpcTimeout);
+        Template t = new Template();
+        t.version = ((Number) r.get("version")).intValue();
+        t.height = ((Number) r.get("height")).intValue();
+        t.time = ((Number) r.get("curtime")).longValue();
+        t.coinbaseValue = ((Number) r.get("coinbasevalue")).longValue();
+        t.prevHash = (String) r.get("previousblockhash");
+        t.bits = (String) r.get("bits");
+        t.target = (String) r.get("target");
+        t.longPollId = (String) r.get("longpollid");
+        t.witnessCommitment = (String) r.get("default_witness_commitment");
+
+        List<?> txs = (List<?>) r.get("transactions");
+        t.txData = new String[txs.size()];
+        ArrayList<byte[]> ids = new ArrayList<byte[]>();
+        ids.add(null);  // coinbase
+        for (int i = 0; i < txs.size(); i++) {
+            Map<?,?> tx = (Map<?,?>) txs.get(i);
+            t.txData[i] = (String) tx.get("data");
+            String id = (String) (tx.get("txid") != null ? tx.get("txid") : tx.get("hash"));
+            ids.add(reverse(Codec.hexToBytes(id)));
+        }
+        t.merkleBranch = merkleBranch(ids);
+        t.fetchTime = System.currentTimeMillis();
+        return t;
+    }
+
+    // branch for the first (coinbase) leaf; hashes in internal byte order
+    private static byte[][] merkleBranch(ArrayList<byte[]> l) {
+        ArrayList<byte[]> b = new ArrayList<byte[]>();
+        byte[] buf = new byte[64];
+        while (l.size() > 1) {
+            b.add(l.get(1));
+            if ((l.size() & 1) != 0)
+                l.add(l.get(l.size() - 1));
+            ArrayList<byte[]> n = new ArrayList<byte[]>();
+            n.add(null);
+            for (int i = 2; i < l.size(); i += 2) {
+                System.arraycopy(l.get(i), 0, buf, 0, 32);
+                System.arraycopy(l.get(i + 1), 0, buf, 32, 32);
+                n.add(sha256d(buf));
+            }
+            l = n;
+        }
+        return b.toArray(new byte[b.size()][]);
+    }
+
+// ******* longPoll ************************************************************
+    private void startLongPoll(final String id) {
+        if (longPollRunning || id == null)
+            return;
+        longPollRunning = true;
+        Thread t = new Thread("getblocktemplate long poll") {
+            public void run() {
+                String lp = id;
+                while (lp != null) {
+                    try {
+                        Template n = fetch(lp);
+                        synchronized (BlockTemplateSource.this) {
+                            setTemplate(n);
+                        }
+                        lp = n.longPollId;
+                    }
+                    catch (IOException e) {
+                        try {
+                            Thread.sleep(10000);
+                        }
+                        catch (InterruptedException e2) {
+                        }
+                    }
+                }
+                synchronized (BlockTemplateSource.this) {
+                    longPollRunning = false;
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void setTemplate(Template t) {
+        if (template != null && !template.prevHash.equals(t.prevHash))
+            works.clear();
+        template = t;
+    }
+
+// ******* getWork *************************************************************
+    public String getWork() throws IOException {
+        Template t;
+        long en;
+        synchronized (this) {
+            t = template;
+        }
+        if (t == null || (!longPollRunning && System.currentTimeMillis() - t.fetchTime > maxTemplateAge)) {
+            Template n = fetch(null);
+            synchronized (this) {
+                setTemplate(n);
+                startLongPoll(n.longPollId);
+            }
+        }
+        synchronized (this) {
+            t = template;
+            en = extranonce++;
+        }
+
+        byte[][] cb = coinbase(t, en);
+        byte[] root = sha256d(cb[1]);
+        byte[] buf = new byte[64];
+        for (int i = 0; i < t.merkleBranch.length; i++) {
+            System.arraycopy(root, 0, buf, 0, 32);
+            System.arraycopy(t.merkleBranch[i], 0, buf, 32, 32);
+            root = sha256d(buf);
+        }
+        String rs = swapWords(Codec.bytesToHex(root));
+        synchronized (this) {
+            works.put(rs, new Work(t, cb[0], cb[1]));
+        }
+        long time = Math.max(t.time, System.currentTimeMillis() / 1000);
+        return String.format("%08x", t.version) + swapWords(Codec.bytesToHex(reverse(Codec.hexToBytes(t.prevHash)))) + rs
+            + String.format("%08x", time) + t.bits + "00000000" + pad;
+    }
+
+// ******* target **************************************************************
+    // network target, 32 bytes little endian as used by getwork
+    public synchronized String target() {
+        return template == null ? "" : Codec.bytesToHex(reverse(Codec.hexToBytes(template.target)));
+    }
+
+// ******* coinbase ************************************************************
+    // returns { coinbase as used in the block, coinbase without witness }
+    private byte[][] coinbase(Template t, long en) {
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        // BIP34 height as serialized by CScript() << height: OP_0, OP_1 .. OP_16 or a minimal script number
+        if (t.height == 0)
+            sig.write(0x00);
+        else if (t.height >= 1 && t.height <= 16)
+            sig.write(0x50 + t.height);
+        else {
+            byte[] h = BigInteger.valueOf(t.height).toByteArray();
+            sig.write(h.length);
+            for (int i = h.length - 1; i >= 0; i--)
+                sig.write(h[i]);
+        }
+        sig.write(8);
+        for (int i = 0; i < 8; i++)
+            sig.write((int) (en >> (i * 8)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int outputs = t.witnessCommitment != null ? 2 : 1;
+        out.write(outputs);
+        writeLong(out, t.coinbaseValue);
+        writeVarInt(out, payoutScript.length);
+        out.write(payoutScript, 0, payoutScript.length);
+        if (t.witnessCommitment != null) {
+            byte[] wc = Codec.hexToBytes(t.witnessCommitment);
+            writeLong(out, 0);
+            writeVarInt(out, wc.length);
+            out.write(wc, 0, wc.length);
+        }
+
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        in.write(1);
+        in.write(new byte[32], 0, 32);
+        writeInt(in, -1);
+        writeVarInt(in, sig.size());
+        in.write(sig.toByteArray(), 0, sig.size());
+        writeInt(in, -1);
+
+        ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        writeInt(tx, 1);
+        tx.write(in.toByteArray(), 0, in.size());
+        tx.write(out.toByteArray(), 0, out.size());
+        writeInt(tx, 0);
+        byte[] txb = tx.toByteArray();
+        if (t.witnessCommitment == null)
+            return new byte[][] { txb, txb };
+
+        // segwit serialization: marker, flag and the 32 byte witness reserved value
+        ByteArrayOutputStream wtx = new ByteArrayOutputStream();
+        writeInt(wtx, 1);
+        wtx.write(0);
+        wtx.write(1);
+        wtx.write(in.toByteArray(), 0, in.size());
+        wtx.write(out.toByteArray(), 0, out.size());
+        wtx.write(1);
+        wtx.write(32);
+        wtx.write(new byte[32], 0, 32);
+        writeInt(wtx, 0);
+        return new byte[][] { wtx.toByteArray(), txb };
+    }
+
+// ******* submit **************************************************************
+    // assembles the block for the submitted getwork data, returns null on success or the error
+    public String submit(String data) throws IOException {
+        if (data.length() < 160)
+            return "invalid data";
+        Work w;
+        synchronized (this) {
+            w = works.get(data.substring(72, 136).toLowerCase());
+        }
+        if (w == null)
+            return "stale work";
+        StringBuilder sb = new StringBuilder(swapWords(data.substring(0, 160).toLowerCase()));
+        ByteArrayOutputStream n = new ByteArrayOutputStream();
+        writeVarInt(n, w.template.txData.length + 1);
+        sb.append(Codec.bytesToHex(n.toByteArray()));
+        sb.append(Codec.bytesToHex(w.coinbase));
+        for (int i = 0; i < w.template.txData.length; i++)
+            sb.append(w.template.txData[i]);
+        Object r = rpc("submitblock", "\"" + sb + "\"", rpcTimeout);
+        return r == null ? null : String.valueOf(r);
+    }
+
+// ******* helpers *************************************************************
+    // scriptPubKey for a base58 P2PKH / P2SH address or hex:<script>
+    static byte[] payoutScript(String payout) throws IOException {
+        if (payout.startsWith("hex:"))
+            return Codec.hexToBytes(payout.substring(4));
+        final String b58 = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+        BigInteger v = BigInteger.ZERO;
+        for (int i = 0; i < payout.length(); i++) {
+            int d = b58.indexOf(payout.charAt(i));
+            if (d < 0)
+                throw new IOException("Invalid payout address: " + payout);
+            v = v.multiply(BigInteger.valueOf(58)).add(BigInteger.valueOf(d));
+        }
+        byte[] b = v.toByteArray();
+        byte[] a = new byte[25];
+        int l = Math.min(b.length, 25);
+        System.arraycopy(b, b.length - l, a, 25 - l, l);
+        byte[] c = sha256d(Arrays.copyOf(a, 21));
+        for (int i = 0; i < 4; i++)
+            if (c[i] != a[21 + i])
+                throw new IOException("Invalid payout address (checksum): " + payout);
+        byte[] s;
+        if (a[0] == 0 || a[0] == 0x6f) {         // P2PKH
+            s = new byte[25];
+            s[0] = (byte) 0x76;
+            s[1] = (byte) 0xa9;
+            s[2] = 20;
+            System.arraycopy(a, 1, s, 3, 20);
+            s[23] = (byte) 0x88;
+            s[24] = (byte) 0xac;
+        }
+        else if (a[0] == 5 || a[0] == (byte) 0xc4) {  // P2SH
+            s = new byte[23];
+            s[0] = (byte) 0xa9;
+            s[1] = 20;
+            System.arraycopy(a, 1, s, 2, 20);
+            s[22] = (byte) 0x87;
+        }
+        else {
+            throw new IOException("Unsupported payout address type: " + payout + ", use hex:<scriptPubKey>");
+        }
+        return s;
+    }
+
+    private static void writeInt(ByteArrayOutputStream o, int v) {
+        for (int i = 0; i < 4; i++)
+            o.write(v >> (i * 8));
+    }
+
+    private static void writeLong(ByteArrayOutputStream o, long v) {
+        for (int i = 0; i < 8; i++)
+            o.write((int) (v >> (i * 8)));
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream o, long v) {
+        if (v < 0xfd) {
+            o.write((int) v);
+        }
+        else if (v <= 0xffff) {
+            o.write(0xfd);
+            o.write((int) v);
+            o.write((int) (v >> 8));
+        }
+        else {
+            o.write(0xfe);
+            writeInt(o, (int) v);
+        }
+    }
+
+    private static byte[] sha256d(byte[] b) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(md.digest(b));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] reverse(byte[] b) {
+        byte[] r = new byte[b.length];
+        for (int i = 0; i < b.length; i++)
+            r[i] = b[b.length - 1 - i];
+        return r;
+    }
+
+    // reverses the byte order of every 32 bit word of a hex string
+    private static String swapWords(String s) {
+        StringBuilder r = new StringBuilder(s.length());
+        for (int i = 0; i + 8 <= s.length(); i += 8)
+            r.append(s, i + 6, i + 8).append(s, i + 4, i + 6).append(s, i + 2, i + 4).append(s, i, i + 2);
+        return r.toString();
+    }
+}
@@ -1,97 +1,260 @@
 // FROM JMINER
 //
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.nio.IntBuffer;
 import java.security.GeneralSecurityException;
 
 import static java.lang.System.arraycopy;
 import static java.lang.Integer.rotateLeft;
+import static java.lang.Integer.reverseBytes;
 
 public class Hasher {
-	
-    private Mac mac;
+
     private byte[] H = new byte[32];
-    private byte[] B = new byte[128 + 4];
     private int[] X = new int[32];
-    private int[] V = new int[32 * 1024];
-    
+    private int[] T = new int[32];
+    private final int vSize;             // in ints, V itself is the Scratchpad of the calling thread
+    private final int lookupGap;         // only every lookupGap-th V entry is stored
+
+    // SHA-256 / HMAC state, all big endian words
+    private byte[] key = new byte[76];   // header bytes 0..75 the cached state belongs to
+    private boolean keyValid = false;
+    private int[] hdr = new int[20];     // header words, hdr[19] is the nonce
+    private int[] hdrState = new int[8]; // SHA-256 state after the first 64 header bytes
+    private int[] istate = new int[8];   // HMAC inner pad state
+    private int[] ostate = new int[8];   // HMAC outer pad state
+    private int[] ihdr = new int[8];     // inner state after the first 64 header bytes
+    private int[] S = new int[8];
+    private int[] W = new int[64];
+
     public Hasher() throws GeneralSecurityException {
-	    mac = Mac.getInstance("HmacSHA256");
+        this(1);
+    }
+
+    // lookupGap has to be a power of 2 <= 1024. V takes 128 KiB / lookupGap, the missing
+    // entries are recomputed, which costs (lookupGap-1)/2 salsa20/8 pairs per lookup on average.
+    public Hasher(int lookupGap) throws GeneralSecurityException {
+        if (lookupGap < 1 || lookupGap > 1024 || (lookupGap & (lookupGap - 1)) != 0)
+            throw new IllegalArgumentException("Invalid lookup gap: " + lookupGap);
+        this.lookupGap = lookupGap;
+        vSize = 32 * 1024 / lookupGap;
+    }
+
+    public int lookupGap() {
+        return lookupGap;
     }
-    
+
+    // size of the scratchpad in bytes
+    public int scratchpadSize() {
+        return vSize * 4;
+    }
+
     public byte[] hash(byte[] header) throws GeneralSecurityException {
     	return hash(header, header[76] | header[77] << 8 | header[78] << 16 | header[79] << 24);
     }
-    
+
     public byte[] hash(byte[] header, int nonce) throws GeneralSecurityException {
         int i, j, k;
+        IntBuffer V = Scratchpad.get(vSize);
 
-        arraycopy(header, 0, B, 0, 76);
-        B[76] = (byte) (nonce >>  0);
-        B[77] = (byte) (nonce >>  8);
-        B[78] = (byte) (nonce >> 16);
-        B[79] = (byte) (nonce >> 24);
-        mac.init(new SecretKeySpec(B, 0, 80, "HmacSHA256"));
-    	B[80] = 0;
-    	B[81] = 0;
-    	B[82] = 0;
-        for (i = 0; i < 4; i++) {
-        	B[83] = (byte) (i + 1);
-            mac.update(B, 0, 84);
-            mac.doFinal(H, 0);
-            
-            for (j = 0; j < 8; j++) {
-                X[i * 8 + j]  = (H[j * 4 + 0] & 0xff) << 0
-                              | (H[j * 4 + 1] & 0xff) << 8
-                              | (H[j * 4 + 2] & 0xff) << 16
-                              | (H[j * 4 + 3] & 0xff) << 24;
-            }
+        pbkdf2In(header, nonce);
+
+        if (lookupGap > 1) {
+            romixGap(V);
+            return pbkdf2Out();
         }
-        
+
         for (i = 0; i < 1024; i++) {
-            arraycopy(X, 0, V, i * 32, 32);
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
+            V.put(i * 32, X, 0, 32);
+            xorSalsa8(X, 0, 16);
+            xorSalsa8(X, 16, 0);
         }
         for (i = 0; i < 1024; i++) {
         	k = (X[16] & 1023) * 32;
+            V.get(k, T, 0, 32);
             for (j = 0; j < 32; j++)
-                X[j] ^= V[k + j];
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
+                X[j] ^= T[j];
+            xorSalsa8(X, 0, 16);
+            xorSalsa8(X, 16, 0);
         }
 
-        for (i = 0; i < 32; i++) {
-            B[i * 4 + 0] = (byte) (X[i] >>  0);
-            B[i * 4 + 1] = (byte) (X[i] >>  8);
-            B[i * 4 + 2] = (byte) (X[i] >> 16);
-            B[i * 4 + 3] = (byte) (X[i] >> 24);
+        return pbkdf2Out();
+    }
+
+    // ROMix with a lookup gap: V[i] is stored only if i is a multiple of lookupGap
+    private void romixGap(IntBuffer V) {
+        int i, j, k, r;
+
+        for (i = 0; i < 1024; i++) {
+            if ((i & (lookupGap - 1)) == 0)
+                V.put((i / lookupGap) * 32, X, 0, 32);
+            xorSalsa8(X, 0, 16);
+            xorSalsa8(X, 16, 0);
+        }
+        for (i = 0; i < 1024; i++) {
+            k = X[16] & 1023;
+            V.get((k / lookupGap) * 32, T, 0, 32);
+            for (r = k & (lookupGap - 1); r > 0; r--) {
+                xorSalsa8(T, 0, 16);
+                xorSalsa8(T, 16, 0);
+            }
+            for (j = 0; j < 32; j++)
+                X[j] ^= T[j];
+            xorSalsa8(X, 0, 16);
+            xorSalsa8(X, 16, 0);
+        }
+    }
+
+    // PBKDF2-HMAC-SHA256(header, header, 1, 128) into X; only the block counter changes
+    // between the four blocks. Returns X, which is the ROMix input.
+    int[] pbkdf2In(byte[] header, int nonce) {
+        int i, j;
+
+        setKey(header, nonce);
+
+        for (i = 0; i < 4; i++) {
+            arraycopy(ihdr, 0, S, 0, 8);
+            W[0] = hdr[16];
+            W[1] = hdr[17];
+            W[2] = hdr[18];
+            W[3] = hdr[19];
+            W[4] = i + 1;
+            W[5] = 0x80000000;
+            for (j = 6; j < 15; j++)
+                W[j] = 0;
+            W[15] = (64 + 84) * 8;
+            Sha256.transform(S, W);
+            hmacFinish(S);
+            for (j = 0; j < 8; j++)
+                X[i * 8 + j] = reverseBytes(S[j]);
+        }
+        return X;
+    }
+
+    // sets up the HMAC key for header and nonce without running PBKDF2. Returns X, which
+    // has to be filled with the ROMix result before pbkdf2Out is called.
+    int[] setKey(byte[] header, int nonce) {
+        setHeader(header);
+        hdr[19] = reverseBytes(nonce);
+        hmacInit();
+        return X;
+    }
+
+    // PBKDF2-HMAC-SHA256(header, X, 1, 32) for the header and nonce of the last setKey call
+    byte[] pbkdf2Out() {
+        int i;
+
+        arraycopy(istate, 0, S, 0, 8);
+        for (i = 0; i < 16; i++)
+            W[i] = reverseBytes(X[i]);
+        Sha256.transform(S, W);
+        for (i = 0; i < 16; i++)
+            W[i] = reverseBytes(X[i + 16]);
+        Sha256.transform(S, W);
+        W[0] = 1;
+        W[1] = 0x80000000;
+        for (i = 2; i < 15; i++)
+            W[i] = 0;
+        W[15] = (64 + 132) * 8;
+        Sha256.transform(S, W);
+        hmacFinish(S);
+
+        for (i = 0; i < 8; i++) {
+            H[i * 4 + 0] = (byte) (S[i] >> 24);
+            H[i * 4 + 1] = (byte) (S[i] >> 16);
+            H[i * 4 + 2] = (byte) (S[i] >>  8);
+            H[i * 4 + 3] = (byte) (S[i] >>  0);
         }
-        
-    	B[128 + 3] = 1;
-        mac.update(B, 0, 128 + 4);
-        mac.doFinal(H, 0);
 
         return H;
     }
 
-    private void xorSalsa8(int di, int xi) {
-        int x00 = (X[di +  0] ^= X[xi +  0]);
-        int x01 = (X[di +  1] ^= X[xi +  1]);
-        int x02 = (X[di +  2] ^= X[xi +  2]);
-        int x03 = (X[di +  3] ^= X[xi +  3]);
-        int x04 = (X[di +  4] ^= X[xi +  4]);
-        int x05 = (X[di +  5] ^= X[xi +  5]);
-        int x06 = (X[di +  6] ^= X[xi +  6]);
-        int x07 = (X[di +  7] ^= X[xi +  7]);
-        int x08 = (X[di +  8] ^= X[xi +  8]);
-        int x09 = (X[di +  9] ^= X[xi +  9]);
-        int x10 = (X[di + 10] ^= X[xi + 10]);
-        int x11 = (X[di + 11] ^= X[xi + 11]);
-        int x12 = (X[di + 12] ^= X[xi + 12]);
-        int x13 = (X[di + 13] ^= X[xi + 13]);
-        int x14 = (X[di + 14] ^= X[xi + 14]);
-        int x15 = (X[di + 15] ^= X[xi + 15]);
+    // caches the nonce independent part of the header; recomputed only if the header changes
+    private void setHeader(byte[] header) {
+        int i;
+        if (keyValid) {
+            for (i = 0; i < 76 && header[i] == key[i]; i++)
+                ;
+            if (i >= 76)
+                return;
+        }
+        arraycopy(header, 0, key, 0, 76);
+        for (i = 0; i < 19; i++)
+            hdr[i] = (header[i * 4 + 0] & 0xff) << 24
+                   | (header[i * 4 + 1] & 0xff) << 16
+                   | (header[i * 4 + 2] & 0xff) << 8
+                   | (header[i * 4 + 3] & 0xff) << 0;
+        Sha256.init(hdrState);
+        arraycopy(hdr, 0, W, 0, 16);
+        Sha256.transform(hdrState, W);
+        keyValid = true;
+    }
+
+    // derives the inner and outer pad states for the current header and nonce
+    private void hmacInit() {
+        int i;
+
+        // the 80 byte key is longer than the block size: key = SHA-256(header)
+        arraycopy(hdrState, 0, S, 0, 8);
+        W[0] = hdr[16];
+        W[1] = hdr[17];
+        W[2] = hdr[18];
+        W[3] = hdr[19];
+        W[4] = 0x80000000;
+        for (i = 5; i < 15; i++)
+            W[i] = 0;
+        W[15] = 80 * 8;
+        Sha256.transform(S, W);
+
+        Sha256.init(istate);
+        for (i = 0; i < 8; i++)
+            W[i] = S[i] ^ 0x36363636;
+        for (i = 8; i < 16; i++)
+            W[i] = 0x36363636;
+        Sha256.transform(istate, W);
+
+        Sha256.init(ostate);
+        for (i = 0; i < 8; i++)
+            W[i] = S[i] ^ 0x5c5c5c5c;
+        for (i = 8; i < 16; i++)
+            W[i] = 0x5c5c5c5c;
+        Sha256.transform(ostate, W);
+
+        // the first 64 message bytes of the PBKDF2 rounds are the header
+        arraycopy(istate, 0, ihdr, 0, 8);
+        arraycopy(hdr, 0, W, 0, 16);
+        Sha256.transform(ihdr, W);
+    }
+
+    // replaces the inner hash in s by the HMAC result
+    private void hmacFinish(int[] s) {
+        int i;
+        for (i = 0; i < 8; i++)
+            W[i] = s[i];
+        W[8] = 0x80000000;
+        for (i = 9; i < 15; i++)
+            W[i] = 0;
+        W[15] = (64 + 32) * 8;
+        arraycopy(ostate, 0, s, 0, 8);
+        Sha256.transform(s, W);
+    }
+
+    private static void xorSalsa8(int[] B, int di, int xi) {
+        int x00 = (B[di +  0] ^= B[xi +  0]);
+        int x01 = (B[di +  1] ^= B[xi +  1]);
+        int x02 = (B[di +  2] ^= B[xi +  2]);
+        int x03 = (B[di +  3] ^= B[xi +  3]);
+        int x04 = (B[di +  4] ^= B[xi +  4]);
+        int x05 = (B[di +  5] ^= B[xi +  5]);
+        int x06 = (B[di +  6] ^= B[xi +  6]);
+        int x07 = (B[di +  7] ^= B[xi +  7]);
+        int x08 = (B[di +  8] ^= B[xi +  8]);
+        int x09 = (B[di +  9] ^= B[xi +  9]);
+        int x10 = (B[di + 10] ^= B[xi + 10]);
+        int x11 = (B[di + 11] ^= B[xi + 11]);
+        int x12 = (B[di + 12] ^= B[xi + 12]);
+        int x13 = (B[di + 13] ^= B[xi + 13]);
+        int x14 = (B[di + 14] ^= B[xi + 14]);
+        int x15 = (B[di + 15] ^= B[xi + 15]);
         for (int i = 0; i < 8; i += 2) {
             x04 ^= rotateLeft(x00+x12, 7);  x08 ^= rotateLeft(x04+x00, 9);
             x12 ^= rotateLeft(x08+x04,13);  x00 ^= rotateLeft(x12+x08,18);
@@ -110,24 +273,71 @@ public class Hasher {
             x12 ^= rotateLeft(x15+x14, 7);  x13 ^= rotateLeft(x12+x15, 9);
             x14 ^= rotateLeft(x13+x12,13);  x15 ^= rotateLeft(x14+x13,18);
         }
-        X[di +  0] += x00;
-        X[di +  1] += x01;
-        X[di +  2] += x02;
-        X[di +  3] += x03;
-        X[di +  4] += x04;
-        X[di +  5] += x05;
-        X[di +  6] += x06;
-        X[di +  7] += x07;
-        X[di +  8] += x08;
-        X[di +  9] += x09;
-        X[di + 10] += x10;
-        X[di + 11] += x11;
-        X[di + 12] += x12;
-        X[di + 13] += x13;
-        X[di + 14] += x14;
-        X[di + 15] += x15;
+        B[di +  0] += x00;
+        B[di +  1] += x01;
+        B[di +  2] += x02;
+        B[di +  3] += x03;
+        B[di +  4] += x04;
+        B[di +  5] += x05;
+        B[di +  6] += x06;
+        B[di +  7] += x07;
+        B[di +  8] += x08;
+        B[di +  9] += x09;
+        B[di + 10] += x10;
+        B[di + 11] += x11;
+        B[di + 12] += x12;
+        B[di + 13] += x13;
+        B[di + 14] += x14;
+        B[di + 15] += x15;
     }
 
-}
+    // benchmark of the lookup gaps: java Hasher [<threads> [<seconds per gap>]]
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final long time = (args.length > 1 ? Integer.parseInt(args[1]) : 5) * 1000L;
+        final byte[] header = new byte[80];
+        for (int i = 0; i < 80; i++)
+            header[i] = (byte) (i * 0x9d);
+
+        byte[] ref = new Hasher(1).hash(header, 0x12345678);
+        System.out.println(threads + " threads, " + time / 1000 + "s per lookup gap");
 
+        for (int gap = 1; gap <= 8; gap *= 2) {
+            final Hasher[] h = new Hasher[threads];
+            final long[] count = new long[threads];
+            for (int i = 0; i < threads; i++)
+                h[i] = new Hasher(gap);
+            if (!java.util.Arrays.equals(ref, h[0].hash(header, 0x12345678)))
+                throw new IllegalStateException("Lookup gap " + gap + ": wrong result");
 
+            Thread[] t = new Thread[threads];
+            final long t0 = System.currentTimeMillis();
+            for (int i = 0; i < threads; i++) {
+                final int n = i;
+                t[i] = new Thread() {
+                    public void run() {
+                        int nonce = n << 24;
+                        try {
+                            while (System.currentTimeMillis() - t0 < time) {
+                                h[n].hash(header, nonce++);
+                                count[n]++;
+                            }
+                        }
+                        catch (GeneralSecurityException e) {
+                        }
+                    }
+                };
+                t[i].start();
+            }
+            long c = 0;
+            for (int i = 0; i < threads; i++) {
+                t[i].join();
+                c += count[i];
+            }
+            double dt = (System.currentTimeMillis() - t0) * 1e-3;
+            System.out.println("lookup gap " + gap + ": " + String.format("%.2f", c / dt * 1e-3) + " KH/s,  scratchpad "
+                + h[0].scratchpadSize() / 1024 + " KiB per hasher, " + h[0].scratchpadSize() * threads / 1024 + " KiB total");
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded pool of Hasher instances. A Hasher caches the SHA-256 state of the
+// last header, so instances are borrowed and returned instead of being created
+// per nonce. The ROMix scratchpad belongs to the hashing thread, see Scratchpad.
+public class HasherPool {
+
+    private static HasherPool shared = null;
+
+    private final int maxSize;
+    private final int lookupGap;
+    private final ArrayBlockingQueue<Hasher> idle;
+    private final AtomicInteger created = new AtomicInteger(0);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitTime = new AtomicLong(0);  // in ns
+
+    public HasherPool(int maxSize) {
+        this(maxSize, 1);
+    }
+
+    public HasherPool(int maxSize, int lookupGap) {
+        if (maxSize < 1)
+            maxSize = 1;
+        this.maxSize = maxSize;
+        this.lookupGap = lookupGap;
+        idle = new ArrayBlockingQueue<Hasher>(maxSize);
+    }
+
+    // process wide pool, sized by setSharedSize or the number of CPUs
+    public static synchronized HasherPool shared() {
+        if (shared == null)
+            shared = new HasherPool(Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    // has to be called before the first call of shared()
+    public static synchronized void setSharedSize(int maxSize) {
+        if (maxSize < 1)
+            maxSize = 1;
+        if (shared != null && shared.maxSize == maxSize)
+            return;     // keep the pool and its statistics
+        if (shared != null && shared.size() > 0)
+            throw new IllegalStateException("Hasher pool already in use");
+        shared = new HasherPool(maxSize, shared != null ? shared.lookupGap : 1);
+    }
+
+    // lookup gap of the Hashers of the shared pool, has to be called before the first call of shared()
+    public static synchronized void setSharedLookupGap(int lookupGap) {
+        if (lookupGap < 1 || lookupGap > 1024 || (lookupGap & (lookupGap - 1)) != 0)
+            throw new IllegalArgumentException("Invalid lookup gap: " + lookupGap);
+        if (shared != null && shared.lookupGap == lookupGap)
+            return;
+        if (shared != null && shared.size() > 0)
+            throw new IllegalStateException("Hasher pool already in use");
+        shared = new HasherPool(shared != null ? shared.maxSize : Runtime.getRuntime().availableProcessors(), lookupGap);
+    }
+
+    public Hasher borrow() throws GeneralSecurityException, InterruptedException {
+        Hasher h = idle.poll();
+        if (h != null) {
+            hits.incrementAndGet();
+            return h;
+        }
+
+        int c = created.get();
+        while (c < maxSize) {
+            if (created.compareAndSet(c, c + 1)) {
+                misses.incrementAndGet();
+                try {
+                    return new Hasher(lookupGap);
+                }
+                catch (GeneralSecurityException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+            c = created.get();
+        }
+
+        long t = System.nanoTime();
+        h = idle.take();
+        waits.incrementAndGet();
+        waitTime.addAndGet(System.nanoTime() - t);
+        return h;
+    }
+
+    public void release(Hasher h) {
+        if (h != null)
+            idle.offer(h);
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public int lookupGap() {
+        return lookupGap;
+    }
+
+    public int size() {
+        return created.get();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long waits() {
+        return waits.get();
+    }
+
+    // total time spent waiting for a free instance in ms
+    public double waitTime() {
+        return waitTime.get() * 1e-6;
+    }
+
+    public String info() {
+        long w = waits.get();
+        return "hasher pool: " + size() + "/" + maxSize + " instances" + ( lookupGap > 1 ? " (lookup gap " + lookupGap + ")" : "" ) + ",  hits=" + hits.get() + ",  misses=" + misses.get()
+            + ",  waits=" + w + ( w > 0 ? " (" + String.format("%.2f", waitTime() / w) + "ms avg)" : "" )
+            + ",  scratchpads: " + Scratchpad.count() + " (" + Scratchpad.bytes() / 1024 + " KiB off-heap)";
+    }
+}
@@ -53,6 +53,7 @@ class ParameterException extends Exception {
     public final static String helpMsg = new String (
 		"Parameters:\n"+
 		"    -host <string>    Host URL (default: http://127.0.0.1:8332)\n" +
+		"                      stratum+tcp://<host>:<port> URLs use the Stratum protocol\n" +
 		"    -u <string>       RPC User name\n" + 
 		"    -p <string>       RPC Password\n" + 
 		"    -lp <url> <user name> <password> \n" + 
@@ -581,125 +582,44 @@ public static byte[] chunkEndianSwitch(byte[] data) {
     }
 
     public static String encodeBase64(byte[] src) {
-	return encodeBase64(src, 0, src.length);
+	return Codec.base64Encode(src);
     }
 
     public static String encodeBase64(byte[] src, int start, int length) {
-        final String charSet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
-	byte[] encodeData = new byte[64];
-        byte[] dst = new byte[(length+2)/3 * 4 + length/72];
-        int x = 0;
-        int dstIndex = 0;
-        int state = 0;
-        int old = 0;
-        int len = 0;
-	int max = length + start;
-
-	for (int i = 0; i<64; i++) {
-	    byte c = (byte) charSet.charAt(i);
-	    encodeData[i] = c;
-	}
-	
-        for (int srcIndex = start; srcIndex<max; srcIndex++) {
-	    x = src[srcIndex];
-	    switch (++state) {
-	    case 1:
-	        dst[dstIndex++] = encodeData[(x>>2) & 0x3f];
-		break;
-	    case 2:
-	        dst[dstIndex++] = encodeData[((old<<4)&0x30) 
-	            | ((x>>4)&0xf)];
-		break;
-	    case 3:
-	        dst[dstIndex++] = encodeData[((old<<2)&0x3C) 
-	            | ((x>>6)&0x3)];
-		dst[dstIndex++] = encodeData[x&0x3F];
-		state = 0;
-		break;
-	    }
-	    old = x;
-	    if (++len >= 72) {
-	    	dst[dstIndex++] = (byte) '\n';
-	    	len = 0;
-	    }
-	}
-
-	switch (state) {
-	case 1: dst[dstIndex++] = encodeData[(old<<4) & 0x30];
-	   dst[dstIndex++] = (byte) '=';
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	case 2: dst[dstIndex++] = encodeData[(old<<2) & 0x3c];
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	}
-	return new String(dst);
+	char[] buf = new char[Codec.base64Length(length)];
+	Codec.base64Encode(src, start, length, buf, 0);
+	return new String(buf);
     }
 
 // ** byteArrayToHexString ***
     public static String byteArrayToHexString(byte[] b) {
-	    StringBuilder sb = new StringBuilder(80);
-	    for(int i = 0; i < b.length; i++)
-		    sb.append(Integer.toString((b[i] & 0xff) + 0x100,16).substring(1));
-	    return sb.toString();
+	return Codec.bytesToHex( b );
     }
 // ******* hexStrToData ********************************************************
     public static byte[] hexStrToData( String str ) throws NumberFormatException {
-	if ( str.length() % 2 != 0 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	byte[] buf = new byte[str.length() >> 1];
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
-	return buf;
+	return Codec.hexToBytes( str );
     }
 
-    public static byte[] hexStringToByteArray(String s)
-    {
-	    int len = s.length();
-	    byte[] data = new byte[len / 2];
-	    for ( int i=0; i < len; i+= 2) {
-		    data[i/2] = (byte) ((Character.digit(s.charAt(i),16) << 4) +
-				    Character.digit(s.charAt(i+1),16));
-	    }
-	    return data;
+    public static byte[] hexStringToByteArray(String s) throws NumberFormatException {
+	return Codec.hexToBytes( s );
     }
     public static void hexStringToByteArray(String s, byte[] data) throws NumberFormatException {
-
-        int len = s.length();
-    	if ( s.length()<data.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-        for ( int i=0; i < len; i+= 2) {
-		    data[i/2] = (byte) ((Character.digit(s.charAt(i),16) << 4) +
-			    Character.digit(s.charAt(i+1),16));
-        }
+	Codec.hexToBytes( s, data );
     }
     public static void hexStrToData( String str, byte[] buf ) throws NumberFormatException {
-	if ( str.length()<buf.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
+	Codec.hexToBytes( str, buf );
     }
 
 // ******* hexStrToData2 ********************************************************
     public static void hexStrToData2( String str, byte[] buf ) throws NumberFormatException {
-	if ( str.length()<buf.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) (Integer.parseInt( str.substring(i*2,i*2+1), 16) + Integer.parseInt( str.substring(i*2+1,i*2+2), 16)*16);
-	}
+	Codec.hexToBytes( str, buf );
+	for ( int i=0; i<buf.length; i++) 
+	    buf[i] = (byte) ( ((buf[i] & 15) << 4) | ((buf[i] >> 4) & 15) );
     }
 
 // ******* dataToHexStr ********************************************************
     public static String dataToHexStr (byte[] data)  {
-	final char hexchars[] = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-	char[] buf = new char[data.length*2];
-	for ( int i=0; i<data.length; i++) {
-	    buf[i*2+0] = hexchars[(data[i] & 255) >> 4];
-	    buf[i*2+1] = hexchars[(data[i] & 15)];
-	}
-	return new String(buf);
+	return Codec.bytesToHex( data );
     }
 
 // ******* dataToInt **********************************************************
@@ -1133,34 +1053,19 @@ public static byte[] chunkEndianSwitch(byte[] data) {
 
 // ******* httpGet *************************************************************
     public static String httpGet(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
-	HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-        con.setRequestMethod("POST");
-        con.setConnectTimeout((int) Math.round(2000.0*LTCMiner.connectionEffort));
-        con.setReadTimeout(url == longPollURL ? 1000000 : (int) Math.round(2000.0*LTCMiner.connectionEffort));
-        con.setRequestProperty("Authorization", "Basic " + encodeBase64(user + ":" + passw));
-        con.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        con.setRequestProperty("Content-Type", "application/json");
-	con.setRequestProperty("Cache-Control", "no-cache");
-        con.setRequestProperty("User-Agent", "ztexLTCMiner");
-        con.setRequestProperty("Content-Length", "" + request.length());
-        con.setRequestProperty("X-Mining-Extensions", "longpoll submitold"); //remove midstate scrypt
-        con.setUseCaches(false);
-        con.setDoInput(true);
-        con.setDoOutput(true);
-        
-        // Send request
-        OutputStreamWriter wr = new OutputStreamWriter ( con.getOutputStream ());
-        wr.write(request);
-        wr.flush();
-        wr.close();
+	RpcClient.Response r = RpcClient.get( url, user, passw, (int) Math.round(2000.0*LTCMiner.connectionEffort),
+		"Cache-Control", "no-cache", "User-Agent", "ztexLTCMiner", "X-Mining-Extensions", "longpoll submitold" ).post( request, url == longPollURL ? 1000000 : (int) Math.round(2000.0*LTCMiner.connectionEffort) ); //remove midstate scrypt
+	if ( r.status >= 400 ) 
+	    throw new IOException( "Server returned HTTP response code: " + r.status + " for URL: " + url );
 
         // read response header
-        String str = con.getHeaderField("X-Reject-Reason");
+        String str = r.header("X-Reject-Reason");
         if( str != null && ! str.equals("") && ! str.equals("high-hash") && ! str.equals("stale-prevblk") && ! str.equals("duplicate") ) {
             msgObj.msg("Warning: Rejected block: " + str);
         } 
+
         // read response header
-    	str = con.getHeaderField("X-Long-Polling");
+    	str = r.header("X-Long-Polling");
         if ( str != null && ! str.equals("") && longPollURL==null ) {
     	    synchronized ( LTCMiner.newBlockMonitor ) {
     		if ( longPollURL==null ) {
@@ -1172,32 +1077,13 @@ public static byte[] chunkEndianSwitch(byte[] data) {
     	    }
         }
 
- 
-       // read response	
-        InputStream is;
-        if ( con.getContentEncoding() == null )
-    	    is = con.getInputStream();
-    	else if ( con.getContentEncoding().equalsIgnoreCase("gzip") )
-    	    is = new GZIPInputStream(con.getInputStream());
-    	else if (con.getContentEncoding().equalsIgnoreCase("deflate") )
-            is = new InflaterInputStream(con.getInputStream());
-        else
-    	    throw new IOException( "httpGet: Unknown encoding: " + con.getContentEncoding() );
-
-        byte[] buf = new byte[1024];
-        StringBuffer response = new StringBuffer(); 
-        int len;
-        while ( (len = is.read(buf)) > 0 ) {
-            response.append(new String(buf,0,len));
-        }
-        is.close();
-        con.disconnect();
-        
-        return response.toString();
+        return r.body;
     }
 
 // ******* bitcoinRequest ******************************************************
     public static String bitcoinRequest( MsgObj msgObj, String url, String user, String passw, String request, String params) throws MalformedURLException, IOException {
+	if ( StratumClient.isStratumUrl(url) )
+	    return StratumClient.get( url, user, passw, 65536 ).request( request, params );
 	bcid += 1;
 	return httpGet( msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\""+ request + "\",\"params\":["+ (params.equals("") ? "" : ("\""+params+"\"")) + "]}" );
     }
@@ -1328,18 +1214,14 @@ public static byte[] chunkEndianSwitch(byte[] data) {
 	  for ( int i=0; i < 4; i++)
 	    sendBuf[i+80] = target[i];
 	} else {
-	   //tuned for litecoin
-	   dmsg("databuf size = " + dataBuf.length);
-	   String dataBufHex = dataToHexStr(dataBuf);
-	   dmsg("little endian dataBuf in hex: " + dataBufHex);
-	   String d1 = dataBufHex.substring(0,(79+1)*2);
-   	   String targetHex = dataToHexStr(targetBuf);
-	   String target = targetHex.substring(0,7+1);
-	   dmsg("sendTarget = " + target);
-	   //sendBuf = hexStrToData(d1 + d2 + d3 + target);
-	   sendBuf = hexStrToData(d1 +  target);
+	   //tuned for litecoin: 80 bytes of data followed by the first 4 bytes of the target
+	   if ( sendBuf.length != 84 )
+	       sendBuf = new byte[84];
+	   System.arraycopy( dataBuf, 0, sendBuf, 0, 80 );
+	   System.arraycopy( targetBuf, 0, sendBuf, 80, 4 );
 	 }
-	dmsg("DATA TO FPGA " + dataToHexStr(sendBuf) + ":" + sendBuf.length );
+	if ( verbose )
+	    dmsg("DATA TO FPGA " + dataToHexStr(sendBuf) + ":" + sendBuf.length );
 
 	long t = new Date().getTime();
 	synchronized (ztex) {
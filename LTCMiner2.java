@@ -34,6 +34,9 @@ import java.net.*;
 import java.security.*;
 import java.text.*;
 import java.util.zip.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.ntb.usb.*;
 
@@ -53,6 +56,7 @@ class ParameterException extends Exception {
     public final static String helpMsg = new String (
 		"Parameters:\n"+
 		"    -host <string>    Host URL (default: http://127.0.0.1:8332)\n" +
+		"                      stratum+tcp://<host>:<port> URLs use the Stratum protocol\n" +
 		"    -u <string>       RPC User name\n" + 
 		"    -p <string>       RPC Password\n" + 
 		"    -lp <url> <user name> <password> \n" + 
@@ -66,6 +70,10 @@ class ParameterException extends Exception {
 		"                      Test mode: tests a board using some test data\n" +
 		"                      Programming mode: programs device with the given firmware\n" +
 		"                      Cluster mode: runs LTCMiner on all programmed boards\n" +
+		"    -hp <number>      Maximum number of scrypt hashers used for share verification (default: number of CPUs)\n" +
+		"    -lg <number>      Scrypt lookup gap of the share verification hashers: 1, 2, 4 or 8 (default: 1)\n" +
+		"                      Stores every n-th scratchpad entry only; less memory, more computation\n" +
+		"    -cpu <number>     Number of CPU mining threads, 0 disables CPU mining (default: 0)\n" +
 		"    -v                Be verbose\n" +
 		"    -h                This help\n" +
 		"Parameters in single mode, test mode and programming mode\n"+
@@ -129,11 +137,12 @@ class PollLoop {
     private double usbTime = 0.0;
     private double networkTime = 0.0;
     private double timeW = 1e-6;
+    private Vector<LTCMiner> v;
     public static final long minQueryInterval = 150;
-    LTCMiner m;
+
 // ******* constructor *********************************************************
-    public PollLoop ( LTCMiner miner) {
-	m  = miner;
+    public PollLoop ( Vector<LTCMiner> pv ) {
+	v = pv;
     }
 	
 // ******* run *****************************************************************
@@ -141,14 +150,14 @@ class PollLoop {
 	int maxIoErrorCount = (int) Math.round( (LTCMiner.rpcCount > 1 ? 2 : 4)*LTCMiner.connectionEffort );
 	int ioDisableTime = LTCMiner.rpcCount > 1 ? 60 : 30;
 	
-	while ( true ) {
+	while ( v.size()>0 ) {
 	    long t0 = new Date().getTime();
 	    long tu = 0;
 
 	    if ( ! scanMode ) {
-		//synchronized ( v ) {
-		    //for ( int i=v.size()-1; i>=0; i-- ) {
-		//	LTCMiner m = v.elementAt(i);
+		synchronized ( v ) {
+		    for ( int i=v.size()-1; i>=0; i-- ) {
+			LTCMiner m = v.elementAt(i);
 			
 			m.usbTime = 0;
 			
@@ -188,11 +197,12 @@ class PollLoop {
 			catch ( Exception e ) {
     			    m.msg("Error: "+e.getLocalizedMessage()+": Disabling device");
     			    m.fatalError = "Error: "+e.getLocalizedMessage()+": Device disabled since " + LTCMiner.dateFormat.format( new Date() );
+    			    v.removeElementAt(i);
 			}
 
     			tu += m.usbTime;
-   		    //}
-		//}
+   		    }
+		}
 
 		t0 = new Date().getTime() - t0;
 		usbTime = usbTime * 0.9998 + tu;
@@ -218,14 +228,17 @@ class PollLoop {
     public void printInfo( String name ) {
 	int oc = 0;
 	double gt=0.0, gtw=0.0, st=0.0, stw=0.0;
-	oc += m.overflowCount;
-	m.overflowCount = 0;
+	for ( int i=v.size()-1; i>=0; i-- ) {
+	    LTCMiner m = v.elementAt(i);
+	    oc += m.overflowCount;
+	    m.overflowCount = 0;
 	    
-	st += m.submitTime;
-	stw += m.submitTimeW;
+	    st += m.submitTime;
+	    stw += m.submitTimeW;
 	    
-	gt += m.getTime;
-	gtw += m.getTimeW;
+	    gt += m.getTime;
+	    gtw += m.getTimeW;
+	}
 	    
 	LTCMiner.printMsg2(name + ": poll loop time: " + Math.round((usbTime+networkTime)/timeW) + "ms (USB: " + Math.round(usbTime/timeW) + "ms network: " + Math.round(networkTime/timeW) + "ms)   getwork time: " 
 		+  Math.round(gt/gtw) + "ms  submit time: " +  Math.round(st/stw) + "ms" );
@@ -444,11 +457,15 @@ class LTCMiner implements MsgObj  {
     };
    
     public boolean meetsTarget(int nonce, Hasher hasher) throws GeneralSecurityException {
-      byte[] hash = hasher.hash(headerBuf, nonce);
-          for (int i = hash.length - 1; i >= 0; i--) {
-            if ((hash[i] & 0xff) > (targetBuf[i] & 0xff))
+      return meetsTarget(hasher.hash(headerBuf, nonce), 0, targetBuf);
+   }
+
+   // compares the 32 byte hash at hash[offs] with the (little endian) target
+   public static boolean meetsTarget(byte[] hash, int offs, byte[] target) {
+          for (int i = 31; i >= 0; i--) {
+            if ((hash[offs+i] & 0xff) > (target[i] & 0xff))
                 return false;
-            if ((hash[i] & 0xff) < (targetBuf[i] & 0xff))
+            if ((hash[offs+i] & 0xff) < (target[i] & 0xff))
                 return true;
       }
       return true;
@@ -496,88 +513,25 @@ class LTCMiner implements MsgObj  {
     }
 
     public static String encodeBase64(byte[] src) {
-	return encodeBase64(src, 0, src.length);
+	return Codec.base64Encode(src);
     }
 
     public static String encodeBase64(byte[] src, int start, int length) {
-        final String charSet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
-	byte[] encodeData = new byte[64];
-        byte[] dst = new byte[(length+2)/3 * 4 + length/72];
-        int x = 0;
-        int dstIndex = 0;
-        int state = 0;
-        int old = 0;
-        int len = 0;
-	int max = length + start;
-
-	for (int i = 0; i<64; i++) {
-	    byte c = (byte) charSet.charAt(i);
-	    encodeData[i] = c;
-	}
-	
-        for (int srcIndex = start; srcIndex<max; srcIndex++) {
-	    x = src[srcIndex];
-	    switch (++state) {
-	    case 1:
-	        dst[dstIndex++] = encodeData[(x>>2) & 0x3f];
-		break;
-	    case 2:
-	        dst[dstIndex++] = encodeData[((old<<4)&0x30) 
-	            | ((x>>4)&0xf)];
-		break;
-	    case 3:
-	        dst[dstIndex++] = encodeData[((old<<2)&0x3C) 
-	            | ((x>>6)&0x3)];
-		dst[dstIndex++] = encodeData[x&0x3F];
-		state = 0;
-		break;
-	    }
-	    old = x;
-	    if (++len >= 72) {
-	    	dst[dstIndex++] = (byte) '\n';
-	    	len = 0;
-	    }
-	}
-
-	switch (state) {
-	case 1: dst[dstIndex++] = encodeData[(old<<4) & 0x30];
-	   dst[dstIndex++] = (byte) '=';
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	case 2: dst[dstIndex++] = encodeData[(old<<2) & 0x3c];
-	   dst[dstIndex++] = (byte) '=';
-	   break;
-	}
-	return new String(dst);
+	char[] buf = new char[Codec.base64Length(length)];
+	Codec.base64Encode(src, start, length, buf, 0);
+	return new String(buf);
     }
 
 // ** byteArrayToHexString ***
     public static String byteArrayToHexString(byte[] b) {
-	    StringBuilder sb = new StringBuilder(80);
-	    for(int i = 0; i < b.length; i++)
-		    sb.append(Integer.toString((b[i] & 0xff) + 0x100,16).substring(1));
-	    return sb.toString();
-    }
-
-    public static byte[] hexStringToByteArray(String s)
-    {
-	    int len = s.length();
-	    byte[] data = new byte[len / 2];
-	    for ( int i=0; i < len; i+= 2) {
-		    data[i/2] = (byte) ((Character.digit(s.charAt(i),16) << 4) +
-				    Character.digit(s.charAt(i+1),16));
-	    }
-	    return data;
+	return Codec.bytesToHex( b );
     }
-    public static void hexStringToByteArray(String s, byte[] data) throws NumberFormatException {
 
-        int len = s.length();
-    	if ( s.length()<data.length*2 ) 
-	    throw new NumberFormatException("Invalid length of string");
-        for ( int i=0; i < len; i+= 2) {
-		    data[i/2] = (byte) ((Character.digit(s.charAt(i),16) << 4) +
-			    Character.digit(s.charAt(i+1),16));
-        }
+    public static byte[] hexStringToByteArray(String s) throws NumberFormatException {
+	return Codec.hexToBytes( s );
+    }
+    public static void hexStringToByteArray(String s, byte[] data) throws NumberFormatException {
+	Codec.hexToBytes( s, data );
     }
 // ******* dataToInt **********************************************************
     public static int dataToInt (byte[] buf, int offs)  {
@@ -739,9 +693,9 @@ class LTCMiner implements MsgObj  {
     private byte[] dataBuf = new byte[128];
     private byte[] dataBuf2 = new byte[128];
     private byte[] sendBuf = new byte[128]; 
-    private byte[] headerBuf;
+    byte[] headerBuf;
     private byte[] hashBuf = hexStringToByteArray("00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000");
-    private byte[] targetBuf = hexStringToByteArray("fffffffffffffffffffffffffffffffffffffffffffffffffffff0f0ff0f0000");
+    byte[] targetBuf = hexStringToByteArray("fffffffffffffffffffffffffffffffffffffffffffffffffffff0f0ff0f0000");
     
     private int newCount = 0;
 
@@ -898,6 +852,45 @@ class LTCMiner implements MsgObj  {
     public LTCMiner ( ZtexDevice1 pDev, String firmwareFile, boolean v ) throws UsbException, FirmwareException, NoSuchAlgorithmException {
 	this ( new Ztex1v1 ( pDev ), firmwareFile, v );
     }
+
+// constructor for miners without ZTEX device, see CpuMiner
+    protected LTCMiner ( String pName, int pNumNonces, int pExtraSolutions, boolean v ) {
+	verbose = v;
+	name = pName;
+
+	numNonces = pNumNonces;
+	extraSolutions = pExtraSolutions;
+	offsNonces = 0;
+	freqM = 0;
+	freqMDefault = 0;
+	freqMaxM = 0;
+	freqM1 = 1.0;
+	hashesPerClock = 1.0;
+
+	goldenNonce = new int[numNonces*(1+extraSolutions)];
+	nonce = new int[numNonces];
+	hash7 = new int[numNonces];
+
+	for (int i=0; i<255; i++) {
+	    errorCount[i] = 0;
+	    errorWeight[i] = 0;
+	    errorRate[i] = 0;
+	    maxErrorRate[i] = 0;
+	}
+	maxHashRate = 1.0;
+
+	lastInfoTime = new Date().getTime();
+	startTime = lastInfoTime;
+	startTimeAdjust = startTime;
+
+	for (int i=0; i<rpcCount; i++) {
+	    disableTime[i] = 0;
+	    ioErrorCount[i] = 0;
+	}
+	if ( newBlockMonitor == null ) {
+	    newBlockMonitor = new NewBlockMonitor();
+	}
+    }
     
 
     public LTCMiner ( Ztex1v1 pZtex, int pFpgaNum, boolean v ) throws UsbException, FirmwareException, NoSuchAlgorithmException {
@@ -1011,34 +1004,19 @@ class LTCMiner implements MsgObj  {
 
 // ******* httpGet *************************************************************
     public static String httpGet(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
-	HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-        con.setRequestMethod("POST");
-        con.setConnectTimeout((int) Math.round(2000.0*LTCMiner.connectionEffort));
-        con.setReadTimeout(url == longPollURL ? 1000000 : (int) Math.round(2000.0*LTCMiner.connectionEffort));
-        con.setRequestProperty("Authorization", "Basic " + encodeBase64(user + ":" + passw));
-        con.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        con.setRequestProperty("Content-Type", "application/json");
-	con.setRequestProperty("Cache-Control", "no-cache");
-        con.setRequestProperty("User-Agent", "ztexLTCMiner");
-        con.setRequestProperty("Content-Length", "" + request.length());
-        con.setRequestProperty("X-Mining-Extensions", "longpoll midstate"); //remove midstate scrypt
-        con.setUseCaches(false);
-        con.setDoInput(true);
-        con.setDoOutput(true);
-        
-        // Send request
-        OutputStreamWriter wr = new OutputStreamWriter ( con.getOutputStream ());
-        wr.write(request);
-        wr.flush();
-        wr.close();
+	RpcClient.Response r = RpcClient.get( url, user, passw, (int) Math.round(2000.0*LTCMiner.connectionEffort),
+		"Cache-Control", "no-cache", "User-Agent", "ztexLTCMiner", "X-Mining-Extensions", "longpoll midstate" ).post( request, url == longPollURL ? 1000000 : (int) Math.round(2000.0*LTCMiner.connectionEffort) ); //remove midstate scrypt
+	if ( r.status >= 400 ) 
+	    throw new IOException( "Server returned HTTP response code: " + r.status + " for URL: " + url );
 
         // read response header
-        String str = con.getHeaderField("X-Reject-Reason");
+        String str = r.header("X-Reject-Reason");
         if( str != null && ! str.equals("") && ! str.equals("high-hash") && ! str.equals("stale-prevblk") && ! str.equals("duplicate") ) {
             msgObj.msg("Warning: Rejected block: " + str);
         } 
+
         // read response header
-    	str = con.getHeaderField("X-Long-Polling");
+    	str = r.header("X-Long-Polling");
         if ( str != null && ! str.equals("") && longPollURL==null ) {
     	    synchronized ( LTCMiner.newBlockMonitor ) {
     		if ( longPollURL==null ) {
@@ -1050,32 +1028,13 @@ class LTCMiner implements MsgObj  {
     	    }
         }
 
- 
-       // read response	
-        InputStream is;
-        if ( con.getContentEncoding() == null )
-    	    is = con.getInputStream();
-    	else if ( con.getContentEncoding().equalsIgnoreCase("gzip") )
-    	    is = new GZIPInputStream(con.getInputStream());
-    	else if (con.getContentEncoding().equalsIgnoreCase("deflate") )
-            is = new InflaterInputStream(con.getInputStream());
-        else
-    	    throw new IOException( "httpGet: Unknown encoding: " + con.getContentEncoding() );
-
-        byte[] buf = new byte[1024];
-        StringBuffer response = new StringBuffer(); 
-        int len;
-        while ( (len = is.read(buf)) > 0 ) {
-            response.append(new String(buf,0,len));
-        }
-        is.close();
-        con.disconnect();
-        
-        return response.toString();
+        return r.body;
     }
 
 // ******* bitcoinRequest ******************************************************
     public static String bitcoinRequest( MsgObj msgObj, String url, String user, String passw, String request, String params) throws MalformedURLException, IOException {
+	if ( StratumClient.isStratumUrl(url) )
+	    return StratumClient.get( url, user, passw, 65536 ).request( request, params );
 	bcid += 1;
 	return httpGet( msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\""+ request + "\",\"params\":["+ (params.equals("") ? "" : ("\""+params+"\"")) + "]}" );
     }
@@ -1150,41 +1109,63 @@ class LTCMiner implements MsgObj  {
 
 // ******* submitWork **********************************************************
     public void submitWork( int n ) throws MalformedURLException, IOException {
+	submitWork( dataBuf.clone(), n, rpcNum );
+    }
+
+// submits nonce n of the given work to URL number rpc, called by the share validator threads
+    public synchronized void submitWork( byte[] d, int n, int rpc ) throws MalformedURLException, IOException {
 	long t = new Date().getTime();
-	byte[] d = dataBuf2.clone();
-	//dataBuf2 is the big endian version from dataBuf. We must as well switch the nonce and its what we are doing here
+	//d is the big endian version from dataBuf. We must as well switch the nonce and its what we are doing here
 	d[79] = (byte) (n >>  0);
 	d[78] = (byte) (n >>  8);
 	d[77] = (byte) (n >> 16);
 	d[76] = (byte) (n >> 24);
-	//hack to make it work
+	msg( "Submitting new nonce " + intToHexStr(n) + ":" +  n );
+	dmsg( dateFormat.format( new Date() ) + ": " + name + ": submitted " + byteArrayToHexString(d) + " to " + rpcurl[rpc]);
+	String response = bitcoinRequest( this, rpcurl[rpc], rpcuser[rpc], rpcpassw[rpc], "getwork", byteArrayToHexString(d));
+	ioErrorCount[rpc] = 0;
+	msg("response: " + response);
+	String err = null;
 	try {
-		Hasher hasher = new Hasher();
-		if(meetsTarget(n,hasher)){
-			msg( "Submitting new nonce " + intToHexStr(n) + ":" +  n );
-			dmsg( dateFormat.format( new Date() ) + ": " + name + ": submitted " + byteArrayToHexString(d) + " to " + rpcurl[rpcNum]);
-			String response = bitcoinRequest( "getwork", byteArrayToHexString(d));
-			msg("response: " + response);
-			String err = null;
-			try {
-			    err = jsonParse(response,"error");
-			}
-			catch ( ParserException e ) {
-			}
-			if ( err!=null && !err.equals("null") && !err.equals("") ) 
-			    msg( "Error attempting to submit new nonce: " + err );
+	    err = jsonParse(response,"error");
+	}
+	catch ( ParserException e ) {
+	}
+	if ( err!=null && !err.equals("null") && !err.equals("") ) 
+	    msg( "Error attempting to submit new nonce: " + err );
+
+	submittedCount+=1;
 
-			for (int i=lastGoldenNonces.length-1; i>0; i-- )
-			    lastGoldenNonces[i]=lastGoldenNonces[i-1];
-			lastGoldenNonces[0] = n;
+	t = new Date().getTime() - t;
+	submitTime = submitTime * 0.99 + t;
+	submitTimeW = submitTimeW * 0.99 + 1;
+    }
 
-			t = new Date().getTime() - t;
-			submitTime = submitTime * 0.99 + t;
-			submitTimeW = submitTimeW * 0.99 + 1;
+// ******* validateShare *******************************************************
+// scrypt target check and submission of nonce n by the share validator
+    private void validateShare( final int n ) {
+	final byte[] header = headerBuf.clone();
+	final byte[] target = targetBuf.clone();
+	final byte[] data = dataBuf.clone();
+	final int rpc = rpcNum;
+	ShareValidator.shared().add( new ShareValidator.Share() {
+	    public boolean valid() throws GeneralSecurityException, InterruptedException {
+		Hasher hasher = HasherPool.shared().borrow();
+		try {
+		    return meetsTarget( hasher.hash(header, n), 0, target );
 		}
-	} catch (GeneralSecurityException e) {
-        }
-	
+		finally {
+		    HasherPool.shared().release(hasher);
+		}
+	    }
+	    public void submit() throws IOException {
+		submitWork( data, n, rpc );
+	    }
+	    public void failed( Exception e ) {
+		ioErrorCount[rpc]++;
+		msg( "Error: " + e.getLocalizedMessage() + ": Submission of nonce " + intToHexStr(n) + " failed" );
+	    }
+	} );
     }
     public void sendData () throws UsbException {
 	    sendData(false);
@@ -1194,16 +1175,14 @@ class LTCMiner implements MsgObj  {
 //  IT MUST BE FIXED
     public void sendData (boolean testMode) throws UsbException {
    	//tuned for litecoin
-        dmsg("databuf size = " + dataBuf.length);
-	byte[] dataToSend = new byte[80];
-	for(int i = 0; i < 80; i++)
-		dataToSend[i] = dataBuf[i];
-	byte[] reverse_dataToSend = reverse(dataToSend);
-	String d1 = byteArrayToHexString(reverse_dataToSend);
-   	String targetHex = byteArrayToHexString(targetBuf);
-	String target = targetHex.substring(0,7+1);
-	sendBuf = hexStringToByteArray(target+d1);
-	dmsg("DATA TO FPGA " + byteArrayToHexString(sendBuf) + ":" + sendBuf.length );
+	// first 4 bytes of the target followed by the 80 bytes of data in reverse order
+	if ( sendBuf.length != 84 )
+	    sendBuf = new byte[84];
+	System.arraycopy( targetBuf, 0, sendBuf, 0, 4 );
+	for ( int i=0; i<80; i++ )
+	    sendBuf[4+i] = dataBuf[79-i];
+	if ( verbose )
+	    dmsg("DATA TO FPGA " + byteArrayToHexString(sendBuf) + ":" + sendBuf.length );
 
 	long t = new Date().getTime();
 	synchronized (ztex) {
@@ -1361,8 +1340,10 @@ class LTCMiner implements MsgObj  {
     	        while ( j<lastGoldenNonces.length && lastGoldenNonces[j]!=n )
     	    	  j++;
         	if  (j>=lastGoldenNonces.length) {
-        	     submitWork( n );
-        	     submittedCount+=1;
+		     for (j=lastGoldenNonces.length-1; j>0; j-- )
+			 lastGoldenNonces[j]=lastGoldenNonces[j-1];
+		     lastGoldenNonces[0] = n;
+        	     validateShare( n );
         	     submitted = true;
         	}
     	    }
@@ -1459,6 +1440,8 @@ class LTCMiner implements MsgObj  {
 	submittedCount = 0;
 	
 	printMsg2(name + ": " + sb.toString());
+	printMsg2(name + ": " + HasherPool.shared().info());
+	printMsg2(name + ": " + ShareValidator.shared().info());
 	    
 	lastInfoTime = t;
     }
@@ -1547,6 +1530,7 @@ class LTCMiner implements MsgObj  {
         boolean printBus = false;
         boolean verbose = false;
         boolean eraseFirmware = false;
+        int cpuThreads = 0;
 
         String filterType = null;
         String logFileName = "LTCMiner.log";
@@ -1619,6 +1603,37 @@ class LTCMiner implements MsgObj  {
 		        throw new ParameterException("s|p|c expected after -m");
 		    }
 		}
+	        else if ( args[i].equals("-lg") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+    			HasherPool.setSharedLookupGap( Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Power of 2 expected after -lg");
+		    }
+		}
+	        else if ( args[i].equals("-cpu") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+    			cpuThreads = Integer.parseInt( args[i] );
+    			if ( cpuThreads < 0 ) throw new Exception();
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -cpu");
+		    }
+		}
+	        else if ( args[i].equals("-hp") ) {
+	    	    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+    			HasherPool.setSharedSize( Integer.parseInt( args[i] ) );
+		    } 
+		    catch (Exception e) {
+		        throw new ParameterException("Number expected after -hp");
+		    }
+		}
 		else if ( args[i].equals("-i") ) {
 		    printBus = true;
 		} 
@@ -1652,7 +1667,7 @@ class LTCMiner implements MsgObj  {
 		    devNum = 0;
 	
 		ZtexScanBus1 bus = new ZtexScanBus1( ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, filterSN==null, false, 1,  filterSN, 10, 0, 1, 0 );
-		if ( bus.numberOfDevices() <= 0) {
+		if ( bus.numberOfDevices() <= 0 && cpuThreads <= 0 ) {
 		    System.err.println("No devices found");
 		    System.exit(0);
 		} 
@@ -1661,8 +1676,12 @@ class LTCMiner implements MsgObj  {
 	    	    System.exit(0);
 		}
 		
-	        LTCMiner miner = new LTCMiner ( bus.device(devNum), firmwareFile, verbose );
-		new PollLoop(miner).run(); 
+		Vector<LTCMiner> miners = new Vector<LTCMiner>();
+		if ( bus.numberOfDevices() > 0 )
+	    	    miners.add( new LTCMiner ( bus.device(devNum), firmwareFile, verbose ) );
+		if ( cpuThreads > 0 )
+	    	    miners.add( new CpuMiner ( cpuThreads, verbose ) );
+		new PollLoop(miners).run(); 
 	    }
     
 	}
@@ -1675,3 +1694,174 @@ class LTCMiner implements MsgObj  {
 	
    } 
 }
+
+
+// *****************************************************************************
+// ******* CpuMiner ************************************************************
+// *****************************************************************************
+// Scrypt miner on the host CPU. It runs in the same poll loop as the FPGA
+// miners: sendData starts the scan of the current work, getNoncesInt collects
+// the golden nonces found by the worker threads.
+class CpuMiner extends LTCMiner {
+    public static final int chunkSize = 64;	// nonces per work item, multiple of the number of lanes
+
+    private final int threads;
+    private final int lanes;
+    private boolean vectorized = false;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<VectorHasher> hashers = new ThreadLocal<VectorHasher>();
+
+    private volatile int workId = 0;	// only written while holding the lock of this miner
+    private volatile AtomicLong nextNonce = new AtomicLong(0);	// nonce counter of the current work, every work gets its own one
+    private final AtomicLong hashCount = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<Integer> found = new ConcurrentLinkedQueue<Integer>();
+
+    private long lastHashCount = 0;
+    private long lastRateTime = 0;
+    private double hashRate = 0;	// in H/s
+
+// ******* constructor *********************************************************
+    public CpuMiner ( int pThreads, boolean v ) {
+	super( "cpu", 1, 3, v );
+	threads = pThreads;
+	lanes = VectorHasher.defaultLanes();
+	try {
+	    vectorized = new VectorHasher( lanes ).vectorized();
+	}
+	catch ( Exception e ) {
+	}
+	pool = new ForkJoinPool( threads );
+	lastRateTime = new Date().getTime();
+    	msg( "New device: "+ descriptorInfo() );
+    }
+
+// ******* sendData ************************************************************
+    public void sendData (boolean testMode) {
+	final byte[] header = headerBuf.clone();
+	final byte[] target = targetBuf.clone();
+
+	synchronized ( this ) {
+	    final int id = ++workId;
+	    final AtomicLong counter = new AtomicLong(0);	// threads still scanning the old work keep using the old counter
+	    found.clear();
+	    nextNonce = counter;
+	    for ( int i=0; i<threads; i++ ) 
+		pool.execute( new Runnable() {
+		    public void run() {
+			scan( id, counter, header, target );
+		    }
+		} );
+	}
+
+	for ( int i=0; i<numNonces; i++ ) 
+	    nonce[i] = 0;
+        isRunning = true;
+        suspended = false;
+    }
+
+// ******* scan ****************************************************************
+// runs on the worker threads until new work arrives or the nonce range is exhausted
+    private void scan ( int id, AtomicLong counter, byte[] header, byte[] target ) {
+	try {
+	    VectorHasher hasher = hashers.get();
+	    if ( hasher == null ) {
+		hasher = new VectorHasher( lanes );
+		hashers.set( hasher );
+	    }
+	    int[] nonces = new int[chunkSize];
+	    byte[] hash = new byte[lanes*32];
+
+	    while ( workId == id ) {
+		long n0 = counter.getAndAdd( chunkSize );
+		if ( n0 > 0xffffffffL ) 
+		    break;
+		for ( int i=0; i<chunkSize; i++ ) 
+		    nonces[i] = (int) (n0 + i);
+		for ( int i=0; i<chunkSize; i+=lanes ) {
+		    hasher.hash( header, nonces, i, hash );
+		    for ( int l=0; l<lanes; l++ ) 
+			if ( meetsTarget(hash, l*32, target) && nonces[i+l] != -offsNonces && workId == id ) 
+			    found.add( nonces[i+l] );
+		}
+		hashCount.addAndGet( chunkSize );
+	    }
+	}
+	catch ( Exception e ) {
+	    msg( "Error: " + e.getLocalizedMessage() + ": CPU miner thread stopped" );
+	}
+    }
+
+// ******* getNoncesInt ********************************************************
+    public void getNoncesInt() {
+	for ( int i=0; i<goldenNonce.length; i++ ) {
+	    Integer n = found.poll();
+	    goldenNonce[i] = n == null ? -offsNonces : n;
+	}
+	nonce[0] = (int) Math.min( nextNonce.get(), 0xffffffffL );
+	hash7[0] = 0;
+    }
+
+// ******* checkNonce *******************************************************
+// hashes are computed on the host, there are no errors
+    public boolean checkNonce( int n, int h ) {
+        return true;
+    }
+
+// ******* setFreq *************************************************************
+    public void setFreq (int m) {
+    }
+
+// ******* updateFreq **********************************************************
+    public void updateFreq() {
+    }
+
+// ******* suspend *************************************************************
+    public boolean suspend ( )  {
+        suspended = true;
+	synchronized ( this ) {
+	    workId++;
+	}
+	return true;
+    }
+
+// ******* totalHashRate *******************************************************
+// in KH/s
+    public double totalHashRate () {
+	return fatalError == null ? hashRate*1e-3 : 0;
+    }
+
+// ******* printInfo ***********************************************************
+    public void printInfo( boolean force ) {
+	long t = new Date().getTime();
+	if ( !force && (clusterMode || lastInfoTime+infoInterval > t || !isRunning) )
+	    return;
+
+	if ( fatalError != null ) {
+	    printMsg2(name + ": " + fatalError);
+	    return;
+	}
+
+	if ( suspended ) {
+	    printMsg2(name + ": Suspended");
+	    return;
+	}
+
+	long c = hashCount.get();
+	if ( t > lastRateTime ) 
+	    hashRate = (c-lastHashCount) * 1000.0 / (t-lastRateTime);
+	lastHashCount = c;
+	lastRateTime = t;
+
+	printMsg2(name + ": threads=" + threads + ",  hashRate=" + String.format("%.2f", hashRate*1e-3) + "KH/s,  submitted " + submittedCount + " new nonces");
+	submittedCount = 0;
+	printMsg2(name + ": " + HasherPool.shared().info());
+	printMsg2(name + ": " + ShareValidator.shared().info());
+
+	lastInfoTime = t;
+    }
+
+// ******* descriptorInfo ******************************************************
+    public String descriptorInfo () {
+	return "CPU scrypt miner: threads=" + threads + "  lanes=" + lanes + ( vectorized ? " (Vector API)" : "" );
+    }
+}
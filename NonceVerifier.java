@@ -0,0 +1,144 @@
+import static java.lang.Integer.rotateRight;
+
+// Double SHA-256 of a block header for nonce sweeps, built once per work unit.
+// The schedule words and the first three rounds of the second block that do not
+// depend on the nonce are precomputed, and the outer hash stops after round 60,
+// which already determines H7. Does not modify the arrays it was built from.
+// Not thread safe, use one instance per thread.
+public class NonceVerifier {
+
+    private final int[] midstate = new int[8];
+    private final int[] data = new int[16];   // second 64 byte block of the header, data[3] is the nonce
+    private final int[] w = new int[64];
+
+    // state after round 2 and nonce independent parts of the schedule
+    private final int a3, b3, c3, d3, e3, f3, g3, h3;
+    private final int w16, w17, w18, w19;
+
+    // midstate: SHA-256 state after the first 64 header bytes
+    // data: the remaining header bytes (and padding) as 16 big endian words
+    public NonceVerifier(int[] midstate, int[] data) {
+        System.arraycopy(midstate, 0, this.midstate, 0, 8);
+        System.arraycopy(data, 0, this.data, 0, 16);
+
+        int a = midstate[0], b = midstate[1], c = midstate[2], d = midstate[3];
+        int e = midstate[4], f = midstate[5], g = midstate[6], h = midstate[7];
+        int t1, t2;
+        for (int i = 0; i < 3; i++) {
+            t1 = h + (rotateRight(e, 6) ^ rotateRight(e, 11) ^ rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + Sha256.K[i] + data[i];
+            t2 = (rotateRight(a, 2) ^ rotateRight(a, 13) ^ rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        a3 = a; b3 = b; c3 = c; d3 = d; e3 = e; f3 = f; g3 = g; h3 = h;
+
+        w16 = s1(data[14]) + data[9] + s0(data[1]) + data[0];
+        w17 = s1(data[15]) + data[10] + s0(data[2]) + data[1];
+        w18 = s1(w16) + data[11] + data[2];    // + s0(nonce)
+        w19 = s1(w17) + data[12] + s0(data[4]); // + nonce
+    }
+
+    private static int s0(int x) {
+        return rotateRight(x, 7) ^ rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    private static int s1(int x) {
+        return rotateRight(x, 17) ^ rotateRight(x, 19) ^ (x >>> 10);
+    }
+
+    public static final int noMatch = Integer.MIN_VALUE;
+
+    // H7 of the double SHA-256 hash for the given nonce, as word 7 of the hash state
+    public int hash7(int nonce) {
+        return Sha256.IV[7] + e60(nonce);
+    }
+
+    // Checks count nonce / H7 pairs, e.g. as reported by the FPGA cores. h7 values are
+    // taken without the final addition of the initial hash value. For every pair the
+    // nonces nonces[i]+offs[j] are tried in the order of offs, match[i] is set to the
+    // first matching offset or noMatch. Returns the number of matched pairs.
+    public int verify(int[] nonces, int[] h7, int count, int[] offs, int[] match) {
+        int m = 0;
+        for (int i = 0; i < count; i++) {
+            int n = nonces[i], h = h7[i];
+            match[i] = noMatch;
+            for (int j = 0; j < offs.length; j++) {
+                if (e60(n + offs[j]) == h) {
+                    match[i] = offs[j];
+                    m++;
+                    break;
+                }
+            }
+        }
+        return m;
+    }
+
+    private int e60(int nonce) {
+        int[] w = this.w;
+        int i, t1, t2;
+
+        // first hash, second block
+        System.arraycopy(data, 0, w, 0, 16);
+        w[3] = nonce;
+        w[16] = w16;
+        w[17] = w17;
+        w[18] = w18 + s0(nonce);
+        w[19] = w19 + nonce;
+        for (i = 20; i < 64; i++)
+            w[i] = s1(w[i - 2]) + w[i - 7] + s0(w[i - 15]) + w[i - 16];
+
+        int a = a3, b = b3, c = c3, d = d3, e = e3, f = f3, g = g3, h = h3;
+        for (i = 3; i < 64; i++) {
+            t1 = h + (rotateRight(e, 6) ^ rotateRight(e, 11) ^ rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + Sha256.K[i] + w[i];
+            t2 = (rotateRight(a, 2) ^ rotateRight(a, 13) ^ rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        // second hash of the 32 byte result
+        w[0] = midstate[0] + a;
+        w[1] = midstate[1] + b;
+        w[2] = midstate[2] + c;
+        w[3] = midstate[3] + d;
+        w[4] = midstate[4] + e;
+        w[5] = midstate[5] + f;
+        w[6] = midstate[6] + g;
+        w[7] = midstate[7] + h;
+        w[8] = 0x80000000;
+        for (i = 9; i < 15; i++)
+            w[i] = 0;
+        w[15] = 256;
+        for (i = 16; i < 61; i++)
+            w[i] = s1(w[i - 2]) + w[i - 7] + s0(w[i - 15]) + w[i - 16];
+
+        a = Sha256.IV[0]; b = Sha256.IV[1]; c = Sha256.IV[2]; d = Sha256.IV[3];
+        e = Sha256.IV[4]; f = Sha256.IV[5]; g = Sha256.IV[6]; h = Sha256.IV[7];
+        for (i = 0; i < 61; i++) {
+            t1 = h + (rotateRight(e, 6) ^ rotateRight(e, 11) ^ rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + Sha256.K[i] + w[i];
+            t2 = (rotateRight(a, 2) ^ rotateRight(a, 13) ^ rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        // e of round 60 becomes h after round 63
+        return e;
+    }
+
+}
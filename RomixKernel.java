@@ -0,0 +1,5 @@
+// ROMix kernel working on several nonces at once. Word w of lane l is stored
+// at x[w*lanes+l], V entry i at v[(i*32+w)*lanes+l].
+interface RomixKernel {
+    public void romix(int[] x, int[] v);
+}
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import ztex.Codec;
+
+// Keep-alive JSON-RPC client. One instance per URL and user name: the HTTP client
+// keeps its connections open between requests, the credentials are encoded once and
+// the number of concurrent requests (i.e. open connections) per URL is limited.
+// Compressed responses are decoded into a per thread buffer.
+public class RpcClient {
+
+    public static int maxConnections = 4;   // per URL, used for clients created afterwards
+
+    private static final HashMap<String,RpcClient> clients = new HashMap<String,RpcClient>();
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    public static class Response {
+        public final int status;
+        public final String body;
+        private final HttpResponse<?> response;
+
+        Response(int status, String body, HttpResponse<?> response) {
+            this.status = status;
+            this.body = body;
+            this.response = response;
+        }
+
+        // returns the value of the given header or null
+        public String header(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+    }
+
+    private final URI uri;
+    private final String auth;
+    private final HttpClient client;
+    private final Semaphore connections;
+    private final String[] headers;
+
+    // headers: additional request headers as name, value pairs
+    public RpcClient(String url, String user, String passw, int connectTimeout, String... headers) throws IOException {
+        try {
+            uri = new URI(url);
+        }
+        catch (Exception e) {
+            throw new java.net.MalformedURLException(url + ": " + e.getLocalizedMessage());
+        }
+        auth = user == null ? null : "Basic " + Codec.base64Encode((user + ":" + (passw == null ? "" : passw)).getBytes("UTF-8"));
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(connectTimeout))
+            .build();
+        connections = new Semaphore(maxConnections < 1 ? 1 : maxConnections);
+        this.headers = headers;
+    }
+
+// ******* get *****************************************************************
+    public static RpcClient get(String url, String user, String passw, int connectTimeout, String... headers) throws IOException {
+        String key = url + "\n" + user + "\n" + passw;
+        synchronized (clients) {
+            RpcClient c = clients.get(key);
+            if (c == null) {
+                c = new RpcClient(url, user, passw, connectTimeout, headers);
+                clients.put(key, c);
+            }
+            return c;
+        }
+    }
+
+// ******* post ****************************************************************
+    // sends the request and returns the response, HTTP errors are not thrown
+    public Response post(String request, int timeout) throws IOException {
+        HttpRequest req = request(request, timeout);
+        try {
+            connections.acquire();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + uri);
+        }
+        try {
+            HttpResponse<InputStream> r = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            return response(r, r.body());
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + uri);
+        }
+        finally {
+            connections.release();
+        }
+    }
+
+// ******* postAsync ***********************************************************
+    // sends the request without blocking a thread, e.g. for long polling: all pending
+    // requests are served by the selector thread of the HTTP client. Requests sent
+    // this way are not counted by the connection limit.
+    public CompletableFuture<Response> postAsync(String request, int timeout) {
+        return client.sendAsync(request(request, timeout), HttpResponse.BodyHandlers.ofByteArray()).thenApply(r -> {
+            try {
+                return response(r, new ByteArrayInputStream(r.body()));
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private HttpRequest request(String request, int timeout) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofMillis(timeout))
+            .header("Accept-Encoding", "gzip,deflate")
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(request));
+        if (auth != null)
+            b.header("Authorization", auth);
+        for (int i = 0; i + 1 < headers.length; i += 2)
+            b.header(headers[i], headers[i + 1]);
+        return b.build();
+    }
+
+    // decodes the body
+    private static Response response(HttpResponse<?> r, InputStream is) throws IOException {
+        String enc = r.headers().firstValue("Content-Encoding").orElse(null);
+        try {
+            if (enc != null && enc.equalsIgnoreCase("gzip"))
+                is = new GZIPInputStream(is);
+            else if (enc != null && enc.equalsIgnoreCase("deflate"))
+                is = new InflaterInputStream(is);
+            else if (enc != null && !enc.equalsIgnoreCase("identity"))
+                throw new IOException("RpcClient: Unknown encoding: " + enc);
+            return new Response(r.statusCode(), read(is), r);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    // reads the stream completely (which allows reuse of the connection)
+    private static String read(InputStream is) throws IOException {
+        byte[] buf = buffers.get();
+        int len = 0, n;
+        while ((n = is.read(buf, len, buf.length - len)) >= 0) {
+            len += n;
+            if (len == buf.length) {
+                buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+                buffers.set(buf);
+            }
+        }
+        return new String(buf, 0, len, "UTF-8");
+    }
+
+    public int availableConnections() {
+        return connections.availablePermits();
+    }
+}
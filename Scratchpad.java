@@ -0,0 +1,69 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Off-heap scrypt scratchpad, one per thread. The buffer is allocated on the first
+// use by a thread (or when a larger one is needed) and reused for every following
+// hash of that thread, so hashing creates no heap garbage. The counters are
+// decreased if a scratchpad is replaced or has been collected after its thread died.
+public class Scratchpad {
+
+    public static final int alignment = 64;  // cache line size
+
+    private static final ThreadLocal<Scratchpad> local = new ThreadLocal<Scratchpad>();
+    private static final AtomicInteger count = new AtomicInteger(0);
+    private static final AtomicLong bytes = new AtomicLong(0);
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final int size;  // in ints
+    private final IntBuffer buf;
+    private final Cleaner.Cleanable cleanable;
+
+    private Scratchpad(int size) {
+        this.size = size;
+        buf = ByteBuffer.allocateDirect(size * 4 + alignment).alignedSlice(alignment).order(ByteOrder.nativeOrder()).asIntBuffer();
+        long b = size * 4L + alignment;
+        count.incrementAndGet();
+        bytes.addAndGet(b);
+        cleanable = cleaner.register(this, new Release(b));
+    }
+
+    // static, i.e. it does not reference the scratchpad
+    private static class Release implements Runnable {
+        private final long bytes;
+
+        Release(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void run() {
+            count.decrementAndGet();
+            Scratchpad.bytes.addAndGet(-bytes);
+        }
+    }
+
+    // scratchpad of the calling thread with at least size ints
+    public static IntBuffer get(int size) {
+        Scratchpad s = local.get();
+        if (s == null || s.size < size) {
+            if (s != null)
+                s.cleanable.clean();
+            s = new Scratchpad(size);
+            local.set(s);
+        }
+        return s.buf;
+    }
+
+    // number of scratchpads in use
+    public static int count() {
+        return count.get();
+    }
+
+    // allocated off-heap memory in bytes
+    public static long bytes() {
+        return bytes.get();
+    }
+}
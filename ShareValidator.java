@@ -0,0 +1,154 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Validation stage between nonce polling and submission. The poll loop adds the
+// golden nonces together with a snapshot of their work, worker threads run the
+// target check and submit the shares that pass. If the queue is full a share is
+// validated on the calling thread, so no share is lost.
+public class ShareValidator {
+
+    public interface Share {
+        // target check, runs on a validator thread
+        public boolean valid() throws Exception;
+        // called on the validator thread if the share passed the target check
+        public void submit() throws Exception;
+        // called if valid or submit threw an exception
+        public void failed(Exception e);
+    }
+
+    private static class Entry {
+        final Share share;
+        final long time;  // enqueue time in ns
+
+        Entry(Share share, long time) {
+            this.share = share;
+            this.time = time;
+        }
+    }
+
+    public static final int defaultCapacity = 256;
+
+    private static ShareValidator shared = null;
+
+    private final int threads;
+    private final ArrayBlockingQueue<Entry> queue;
+
+    private final AtomicLong validCount = new AtomicLong(0);
+    private final AtomicLong invalidCount = new AtomicLong(0);
+    private final AtomicLong errorCount = new AtomicLong(0);
+    private final AtomicLong overflowCount = new AtomicLong(0);
+    private final AtomicInteger maxDepth = new AtomicInteger(0);
+
+    private double latency = 0.0;      // in ms, exponentially weighted
+    private double latencyW = 1e-6;
+    private double maxLatency = 0.0;
+
+    public ShareValidator(int threads, int capacity) {
+        if (threads < 1)
+            threads = 1;
+        this.threads = threads;
+        queue = new ArrayBlockingQueue<Entry>(capacity < 1 ? 1 : capacity);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread("share validator " + i) {
+                public void run() {
+                    while (true) {
+                        try {
+                            process(queue.take());
+                        }
+                        catch (InterruptedException e) {
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // process wide validator, sized by setSharedThreads or the number of CPUs
+    public static synchronized ShareValidator shared() {
+        if (shared == null)
+            shared = new ShareValidator(Runtime.getRuntime().availableProcessors(), defaultCapacity);
+        return shared;
+    }
+
+    // has to be called before the first call of shared()
+    public static synchronized void setSharedThreads(int threads) {
+        if (shared != null)
+            throw new IllegalStateException("Share validator already in use");
+        shared = new ShareValidator(threads, defaultCapacity);
+    }
+
+    public void add(Share s) {
+        Entry e = new Entry(s, System.nanoTime());
+        if (!queue.offer(e)) {
+            overflowCount.incrementAndGet();
+            process(e);
+            return;
+        }
+        int d = queue.size();
+        int m = maxDepth.get();
+        while (d > m && !maxDepth.compareAndSet(m, d))
+            m = maxDepth.get();
+    }
+
+    private void process(Entry e) {
+        try {
+            boolean v = e.share.valid();
+            double t = (System.nanoTime() - e.time) * 1e-6;
+            synchronized (this) {
+                latency = latency * 0.99 + t;
+                latencyW = latencyW * 0.99 + 1;
+                if (t > maxLatency)
+                    maxLatency = t;
+            }
+            if (v) {
+                validCount.incrementAndGet();
+                e.share.submit();
+            }
+            else {
+                invalidCount.incrementAndGet();
+            }
+        }
+        catch (Exception ex) {
+            errorCount.incrementAndGet();
+            e.share.failed(ex);
+        }
+    }
+
+    public int threads() {
+        return threads;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    // average time from add until the target check finished, in ms
+    public synchronized double latency() {
+        return latency / latencyW;
+    }
+
+    public long validCount() {
+        return validCount.get();
+    }
+
+    public long invalidCount() {
+        return invalidCount.get();
+    }
+
+    public String info() {
+        double l, ml;
+        synchronized (this) {
+            l = latency / latencyW;
+            ml = maxLatency;
+            maxLatency = 0;
+        }
+        int md = maxDepth.getAndSet(queue.size());
+        long o = overflowCount.get();
+        return "share validator: queue=" + queue.size() + "/" + (queue.size() + queue.remainingCapacity()) + " (max " + md + "),  latency="
+            + String.format("%.1f", l) + "ms (max " + String.format("%.1f", ml) + "ms),  valid=" + validCount.get() + ",  invalid=" + invalidCount.get()
+            + ( errorCount.get() > 0 ? ",  errors=" + errorCount.get() : "" ) + ( o > 0 ? ",  overflows=" + o : "" );
+    }
+}
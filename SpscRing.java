@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded lock free queue for exactly one producer and one consumer thread. The
+// positions only grow, every side caches the position of the other one and only
+// reads it again if the ring seems to be full or empty. Elements are published by
+// an ordered write of the position (release), i.e. no locks or CAS are required.
+public class SpscRing<T> {
+
+    private final Object[] buf;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0);  // next position to read, written by the consumer
+    private final AtomicLong tail = new AtomicLong(0);  // next position to write, written by the producer
+    private long cachedHead = 0;   // producer side
+    private long cachedTail = 0;   // consumer side
+
+    // the capacity is rounded up to a power of two
+    public SpscRing(int capacity) {
+        int c = 1;
+        while (c < capacity)
+            c <<= 1;
+        buf = new Object[c];
+        mask = c - 1;
+    }
+
+    // producer: returns false if the ring is full
+    public boolean offer(T e) {
+        long t = tail.get();
+        if (t - cachedHead >= buf.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= buf.length)
+                return false;
+        }
+        buf[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // consumer: returns null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail)
+                return null;
+        }
+        int i = (int) h & mask;
+        T e = (T) buf[i];
+        buf[i] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    // may be called by both sides and other threads, the result is a snapshot
+    public int size() {
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+}
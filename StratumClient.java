@@ -0,0 +1,516 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import ztex.Codec;
+
+// Stratum mining protocol client. Keeps one TCP connection per pool and user and
+// answers getwork requests locally: the block header is built from the coinbase
+// parts, the merkle branch and a rolling extranonce2, so new work costs no network
+// round trip. Work and submissions use the getwork data format, so the miners can
+// use it through bitcoinRequest with an URL of the form stratum+tcp://host:port.
+public class StratumClient {
+
+    public static final String urlPrefix = "stratum+tcp://";
+    public static final int connectTimeout = 10000;   // in ms
+    public static final int responseTimeout = 20000;  // in ms
+    public static final int maxWorks = 4096;          // number of generated works that can be submitted
+
+    private static final HashMap<String,StratumClient> clients = new HashMap<String,StratumClient>();
+
+    private static final String pad = "000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+
+    private static class Job {
+        String id, prevHash, coinb1, coinb2, version, nbits, ntime;
+        byte[][] merkleBranch;
+        double difficulty;  // share difficulty of this job
+    }
+
+    private static class Work {
+        final Job job;
+        final String extranonce2;
+
+        Work(Job job, String extranonce2) {
+            this.job = job;
+            this.extranonce2 = extranonce2;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String user, passw;
+    private final double diff1Factor;  // 1 for SHA-256d, 65536 for scrypt pools
+
+    private Socket socket = null;
+    private Writer writer = null;
+    private int nextId = 1;
+    private final HashMap<Integer,Object> responses = new HashMap<Integer,Object>();
+
+    private String extranonce1 = null;
+    private int extranonce2Size = 4;
+    private long extranonce2 = 0;
+    private double difficulty = 1.0;  // from mining.set_difficulty, applies to the jobs of the following notifications
+    private Job job = null;
+    private final LinkedHashMap<String,Work> works = new LinkedHashMap<String,Work>() {
+        protected boolean removeEldestEntry(Map.Entry<String,Work> e) {
+            return size() > maxWorks;
+        }
+    };
+
+    public StratumClient(String host, int port, String user, String passw, double diff1Factor) {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.passw = passw;
+        this.diff1Factor = diff1Factor;
+    }
+
+// ******* get *****************************************************************
+    // client for url, user, password; one instance per pool and user
+    public static StratumClient get(String url, String user, String passw, double diff1Factor) throws IOException {
+        if (!url.startsWith(urlPrefix))
+            throw new MalformedStratumUrlException(url);
+        String key = url + "\n" + user;
+        synchronized (clients) {
+            StratumClient c = clients.get(key);
+            if (c == null) {
+                String hp = url.substring(urlPrefix.length());
+                int i = hp.indexOf('/');
+                if (i >= 0)
+                    hp = hp.substring(0, i);
+                i = hp.lastIndexOf(':');
+                try {
+                    c = new StratumClient(hp.substring(0, i), Integer.parseInt(hp.substring(i + 1)), user, passw, diff1Factor);
+                }
+                catch (Exception e) {
+                    throw new MalformedStratumUrlException(url);
+                }
+                clients.put(key, c);
+            }
+            return c;
+        }
+    }
+
+    public static boolean isStratumUrl(String url) {
+        return url != null && url.startsWith(urlPrefix);
+    }
+
+    public static class MalformedStratumUrlException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedStratumUrlException(String url) {
+            super("Invalid stratum URL: " + url + ", " + urlPrefix + "<host>:<port> expected");
+        }
+    }
+
+// ******* request *************************************************************
+    // getwork emulation: without params new work is returned, otherwise params is submitted
+    public String request(String method, String params) throws IOException {
+        if (!method.equals("getwork"))
+            throw new IOException("Stratum: unsupported request: " + method);
+        if (params == null || params.equals("")) {
+            Job[] j = new Job[1];
+            String data = getWork(j);
+            return "{\"result\":{\"data\":\"" + data + "\",\"target\":\"" + target(j[0].difficulty) + "\"},\"error\":null,\"id\":0}";
+        }
+        String err = submit(params);
+        return "{\"result\":" + (err == null) + ",\"error\":" + (err == null ? "null" : quote(err)) + ",\"id\":0}";
+    }
+
+// ******* connect *************************************************************
+    private synchronized void connect() throws IOException {
+        if (socket != null)
+            return;
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(host, port), connectTimeout);
+        socket = s;
+        writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+        job = null;
+        works.clear();
+        final Socket fs = s;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+        Thread t = new Thread("stratum " + host + ":" + port) {
+            public void run() {
+                readLoop(fs, reader);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        try {
+            List<?> r = (List<?>) call("mining.subscribe", "");
+            extranonce1 = (String) r.get(1);
+            extranonce2Size = ((Number) r.get(2)).intValue();
+            extranonce2 = 0;
+            Object a = call("mining.authorize", quote(user) + "," + quote(passw));
+            if (!Boolean.TRUE.equals(a))
+                throw new IOException("Stratum: authorization failed");
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            close();
+            throw new IOException("Stratum: invalid subscribe response: " + e);
+        }
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+        socket = null;
+        writer = null;
+        job = null;
+        notifyAll();
+    }
+
+// ******* call ****************************************************************
+    // sends a request and waits for the result
+    private synchronized Object call(String method, String params) throws IOException {
+        int id = nextId++;
+        send("{\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":[" + params + "]}");
+        long t = System.currentTimeMillis() + responseTimeout;
+        while (!responses.containsKey(id)) {
+            long w = t - System.currentTimeMillis();
+            if (socket == null)
+                throw new IOException("Stratum: connection to " + host + ":" + port + " lost");
+            if (w <= 0)
+                throw new IOException("Stratum: no response to " + method);
+            try {
+                wait(w);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        Map<?,?> r = (Map<?,?>) responses.remove(id);
+        Object err = r.get("error");
+        if (err != null)
+            throw new StratumErrorException(method, err);
+        return r.get("result");
+    }
+
+    public static class StratumErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final transient Object error;    // parsed JSON, not serializable
+
+        public StratumErrorException(String method, Object error) {
+            super("Stratum: " + method + " failed: " + error);
+            this.error = error;
+        }
+    }
+
+    private synchronized void send(String msg) throws IOException {
+        if (writer == null)
+            throw new IOException("Stratum: not connected");
+        try {
+            writer.write(msg);
+            writer.write('\n');
+            writer.flush();
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+// ******* readLoop ************************************************************
+    private void readLoop(Socket s, BufferedReader reader) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0)
+                    continue;
+                Map<?,?> m = (Map<?,?>) parseJson(line);
+                Object method = m.get("method");
+                synchronized (this) {
+                    if (method != null)
+                        handleNotification((String) method, (List<?>) m.get("params"));
+                    else if (m.get("id") instanceof Number)
+                        responses.put(((Number) m.get("id")).intValue(), m);
+                    notifyAll();
+                }
+            }
+        }
+        catch (Exception e) {
+        }
+        synchronized (this) {
+            if (socket == s)
+                close();
+        }
+    }
+
+    private void handleNotification(String method, List<?> p) {
+        if (method.equals("mining.notify")) {
+            Job j = new Job();
+            j.id = (String) p.get(0);
+            j.prevHash = (String) p.get(1);
+            j.coinb1 = (String) p.get(2);
+            j.coinb2 = (String) p.get(3);
+            List<?> mb = (List<?>) p.get(4);
+            j.merkleBranch = new byte[mb.size()][];
+            for (int i = 0; i < mb.size(); i++)
+                j.merkleBranch[i] = Codec.hexToBytes((String) mb.get(i));
+            j.version = (String) p.get(5);
+            j.nbits = (String) p.get(6);
+            j.ntime = (String) p.get(7);
+            j.difficulty = difficulty;
+            if (p.size() > 8 && Boolean.TRUE.equals(p.get(8)))
+                works.clear();
+            job = j;
+        }
+        else if (method.equals("mining.set_difficulty")) {
+            difficulty = ((Number) p.get(0)).doubleValue();
+        }
+    }
+
+// ******* getWork *************************************************************
+    // builds new work from the current job, returned as getwork data
+    public String getWork() throws IOException {
+        return getWork(new Job[1]);
+    }
+
+    // the job of the work is returned in job[0]
+    private String getWork(Job[] job) throws IOException {
+        connect();
+        Job j;
+        String en2;
+        synchronized (this) {
+            long t = System.currentTimeMillis() + responseTimeout;
+            while (this.job == null) {
+                long w = t - System.currentTimeMillis();
+                if (socket == null || w <= 0)
+                    throw new IOException("Stratum: no job received from " + host + ":" + port);
+                try {
+                    wait(w);
+                }
+                catch (InterruptedException e) {
+                }
+            }
+            j = this.job;
+            job[0] = j;
+            StringBuilder sb = new StringBuilder(Long.toHexString(extranonce2++));
+            while (sb.length() < extranonce2Size * 2)
+                sb.insert(0, '0');
+            en2 = sb.substring(sb.length() - extranonce2Size * 2);
+        }
+
+        byte[] root = sha256d(Codec.hexToBytes(j.coinb1 + extranonce1 + en2 + j.coinb2));
+        byte[] b = new byte[64];
+        for (int i = 0; i < j.merkleBranch.length; i++) {
+            System.arraycopy(root, 0, b, 0, 32);
+            System.arraycopy(j.merkleBranch[i], 0, b, 32, 32);
+            root = sha256d(b);
+        }
+        // getwork format: header words in big endian
+        StringBuilder r = new StringBuilder(Codec.bytesToHex(root));
+        for (int i = 0; i < 64; i += 8)
+            r.replace(i, i + 8, r.substring(i + 6, i + 8) + r.substring(i + 4, i + 6) + r.substring(i + 2, i + 4) + r.substring(i, i + 2));
+        String rs = r.toString();
+        synchronized (this) {
+            works.put(rs, new Work(j, en2));
+        }
+        return j.version + j.prevHash + rs + j.ntime + j.nbits + "00000000" + pad;
+    }
+
+// ******* target **************************************************************
+    // share target of the current job, 32 bytes little endian as used by getwork
+    public synchronized String target() {
+        return target(difficulty());
+    }
+
+    private String target(double difficulty) {
+        BigInteger t = new BigDecimal(BigInteger.valueOf(0xffff).shiftLeft(208)).multiply(new BigDecimal(diff1Factor))
+            .divide(new BigDecimal(difficulty), 0, RoundingMode.DOWN).toBigInteger();
+        BigInteger max = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+        if (t.compareTo(max) > 0)
+            t = max;
+        byte[] b = t.toByteArray();
+        byte[] r = new byte[32];
+        for (int i = 0; i < 32 && i < b.length; i++)
+            r[i] = b[b.length - 1 - i];
+        return Codec.bytesToHex(r);
+    }
+
+    // share difficulty of the current job
+    public synchronized double difficulty() {
+        return job != null ? job.difficulty : difficulty;
+    }
+
+// ******* submit **************************************************************
+    // submits getwork data, returns null on success or the error
+    public String submit(String data) throws IOException {
+        if (data.length() < 160)
+            return "invalid data";
+        Work w;
+        synchronized (this) {
+            w = works.get(data.substring(72, 136).toLowerCase());
+        }
+        if (w == null)
+            return "stale work";
+        try {
+            Object r = call("mining.submit", quote(user) + "," + quote(w.job.id) + "," + quote(w.extranonce2) + ","
+                + quote(data.substring(136, 144).toLowerCase()) + "," + quote(data.substring(152, 160).toLowerCase()));
+            return Boolean.TRUE.equals(r) ? null : "share rejected";
+        }
+        catch (StratumErrorException e) {
+            return String.valueOf(e.error);
+        }
+    }
+
+// ******* helpers *************************************************************
+    private static byte[] sha256d(byte[] b) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(md.digest(b));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 32)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+// ******* parseJson ***********************************************************
+    // minimal JSON parser: objects become Maps, arrays Lists, numbers Doubles or Longs
+    static Object parseJson(String s) throws IOException {
+        int[] pos = { 0 };
+        Object o = parseValue(s, pos);
+        skipSpace(s, pos);
+        if (pos[0] != s.length())
+            throw new IOException("JSON: unexpected data at position " + pos[0]);
+        return o;
+    }
+
+    private static void skipSpace(String s, int[] pos) {
+        while (pos[0] < s.length() && s.charAt(pos[0]) <= ' ')
+            pos[0]++;
+    }
+
+    private static Object parseValue(String s, int[] pos) throws IOException {
+        skipSpace(s, pos);
+        if (pos[0] >= s.length())
+            throw new IOException("JSON: unexpected end of data");
+        char c = s.charAt(pos[0]);
+        if (c == '{') {
+            LinkedHashMap<String,Object> m = new LinkedHashMap<String,Object>();
+            pos[0]++;
+            skipSpace(s, pos);
+            if (pos[0] < s.length() && s.charAt(pos[0]) == '}') {
+                pos[0]++;
+                return m;
+            }
+            while (true) {
+                skipSpace(s, pos);
+                Object k = parseValue(s, pos);
+                if (!(k instanceof String))
+                    throw new IOException("JSON: string expected at position " + pos[0]);
+                skipSpace(s, pos);
+                expect(s, pos, ':');
+                m.put((String) k, parseValue(s, pos));
+                skipSpace(s, pos);
+                if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+                    pos[0]++;
+                    continue;
+                }
+                expect(s, pos, '}');
+                return m;
+            }
+        }
+        if (c == '[') {
+            ArrayList<Object> l = new ArrayList<Object>();
+            pos[0]++;
+            skipSpace(s, pos);
+            if (pos[0] < s.length() && s.charAt(pos[0]) == ']') {
+                pos[0]++;
+                return l;
+            }
+            while (true) {
+                l.add(parseValue(s, pos));
+                skipSpace(s, pos);
+                if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+                    pos[0]++;
+                    continue;
+                }
+                expect(s, pos, ']');
+                return l;
+            }
+        }
+        if (c == '"') {
+            StringBuilder sb = new StringBuilder();
+            pos[0]++;
+            while (pos[0] < s.length() && (c = s.charAt(pos[0])) != '"') {
+                if (c == '\\' && pos[0] + 1 < s.length()) {
+                    c = s.charAt(++pos[0]);
+                    if (c == 'u' && pos[0] + 4 < s.length()) {
+                        c = (char) Integer.parseInt(s.substring(pos[0] + 1, pos[0] + 5), 16);
+                        pos[0] += 4;
+                    }
+                    else if (c == 'n') c = '\n';
+                    else if (c == 't') c = '\t';
+                    else if (c == 'r') c = '\r';
+                    else if (c == 'b') c = '\b';
+                    else if (c == 'f') c = '\f';
+                }
+                sb.append(c);
+                pos[0]++;
+            }
+            expect(s, pos, '"');
+            return sb.toString();
+        }
+        if (s.startsWith("true", pos[0])) {
+            pos[0] += 4;
+            return Boolean.TRUE;
+        }
+        if (s.startsWith("false", pos[0])) {
+            pos[0] += 5;
+            return Boolean.FALSE;
+        }
+        if (s.startsWith("null", pos[0])) {
+            pos[0] += 4;
+            return null;
+        }
+        int i = pos[0];
+        while (pos[0] < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos[0])) >= 0)
+            pos[0]++;
+        String n = s.substring(i, pos[0]);
+        try {
+            if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0)
+                return Long.valueOf(n);
+            return Double.valueOf(n);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("JSON: invalid value at position " + i);
+        }
+    }
+
+    private static void expect(String s, int[] pos, char c) throws IOException {
+        if (pos[0] >= s.length() || s.charAt(pos[0]) != c)
+            throw new IOException("JSON: `" + c + "' expected at position " + pos[0]);
+        pos[0]++;
+    }
+}
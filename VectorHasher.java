@@ -0,0 +1,87 @@
+import java.security.GeneralSecurityException;
+
+import static java.lang.System.arraycopy;
+
+// Scrypt hasher for 4, 8 or 16 nonces in parallel. The salsa20/8 core and the
+// ROMix table run lane-interleaved on the Java Vector API (VectorSalsaKernel,
+// requires --add-modules jdk.incubator.vector). If the kernel can't be loaded
+// the nonces are hashed one by one with Hasher. Results are identical to Hasher.hash.
+public class VectorHasher {
+
+    private final int lanes;
+    private final Hasher hasher;
+    private RomixKernel kernel = null;
+    private int[] X;
+    private int[] V;
+
+    public VectorHasher() throws GeneralSecurityException {
+        this(defaultLanes());
+    }
+
+    public VectorHasher(int lanes) throws GeneralSecurityException {
+        if (lanes != 4 && lanes != 8 && lanes != 16)
+            throw new IllegalArgumentException("Invalid number of lanes: " + lanes);
+        this.lanes = lanes;
+        hasher = new Hasher();
+        kernel = loadKernel(lanes);
+        if (kernel != null) {
+            X = new int[32 * lanes];
+            V = new int[32 * 1024 * lanes];
+        }
+    }
+
+    // number of ints of the preferred vector species, 4 if the Vector API is not available
+    public static int defaultLanes() {
+        try {
+            int l = (Integer) Class.forName("VectorSalsaKernel").getMethod("preferredLanes").invoke(null);
+            return l >= 16 ? 16 : ( l >= 8 ? 8 : 4 );
+        }
+        catch (Throwable e) {
+            return 4;
+        }
+    }
+
+    private static RomixKernel loadKernel(int lanes) {
+        try {
+            return (RomixKernel) Class.forName("VectorSalsaKernel").getConstructor(int.class).newInstance(lanes);
+        }
+        catch (Throwable e) {  // class missing, module not resolved or species not supported
+            return null;
+        }
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+
+    public boolean vectorized() {
+        return kernel != null;
+    }
+
+    // hashes nonces[offs .. offs+lanes-1], the hash of lane l is written to out[l*32 .. l*32+31]
+    public void hash(byte[] header, int[] nonces, int offs, byte[] out) throws GeneralSecurityException {
+        int i, j, l;
+
+        if (kernel == null) {
+            for (l = 0; l < lanes; l++)
+                arraycopy(hasher.hash(header, nonces[offs + l]), 0, out, l * 32, 32);
+            return;
+        }
+
+        for (l = 0; l < lanes; l++) {
+            int[] x = hasher.pbkdf2In(header, nonces[offs + l]);
+            for (i = 0, j = l; i < 32; i++, j += lanes)
+                X[j] = x[i];
+        }
+
+        kernel.romix(X, V);
+
+        for (l = 0; l < lanes; l++) {
+            int[] x = hasher.setKey(header, nonces[offs + l]);
+            for (i = 0, j = l; i < 32; i++, j += lanes)
+                x[i] = X[j];
+            arraycopy(hasher.pbkdf2Out(), 0, out, l * 32, 32);
+        }
+    }
+
+}
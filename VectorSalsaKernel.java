@@ -0,0 +1,135 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.XOR;
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.LSHR;
+
+// Lane-interleaved scrypt ROMix (N=1024, r=1) on the Java Vector API, see VectorHasher.
+// Compile and run with --add-modules jdk.incubator.vector.
+public class VectorSalsaKernel implements RomixKernel {
+
+    private final VectorSpecies<Integer> species;
+    private final int lanes;
+    private final int[] idx;
+
+    public VectorSalsaKernel(int lanes) {
+        if (lanes == 4)
+            species = IntVector.SPECIES_128;
+        else if (lanes == 8)
+            species = IntVector.SPECIES_256;
+        else if (lanes == 16)
+            species = IntVector.SPECIES_512;
+        else
+            throw new IllegalArgumentException("Invalid number of lanes: " + lanes);
+        this.lanes = lanes;
+        idx = new int[lanes];
+    }
+
+    public static int preferredLanes() {
+        return IntVector.SPECIES_PREFERRED.length();
+    }
+
+    public void romix(int[] x, int[] v) {
+        final int bs = 32 * lanes;
+        int i, j, l;
+
+        for (i = 0; i < 1024; i++) {
+            System.arraycopy(x, 0, v, i * bs, bs);
+            xorSalsa8(x, 0, 16 * lanes);
+            xorSalsa8(x, 16 * lanes, 0);
+        }
+        for (i = 0; i < 1024; i++) {
+            for (l = 0; l < lanes; l++)
+                idx[l] = (x[16 * lanes + l] & 1023) * bs + l;
+            for (j = 0; j < 32; j++) {
+                IntVector.fromArray(species, x, j * lanes)
+                    .lanewise(XOR, IntVector.fromArray(species, v, j * lanes, idx, 0))
+                    .intoArray(x, j * lanes);
+            }
+            xorSalsa8(x, 0, 16 * lanes);
+            xorSalsa8(x, 16 * lanes, 0);
+        }
+    }
+
+    private IntVector load(int[] x, int di, int xi, int w) {
+        IntVector d = IntVector.fromArray(species, x, di + w * lanes).lanewise(XOR, IntVector.fromArray(species, x, xi + w * lanes));
+        d.intoArray(x, di + w * lanes);
+        return d;
+    }
+
+    private void xorSalsa8(int[] x, int di, int xi) {
+        IntVector x00 = load(x, di, xi,  0);
+        IntVector x01 = load(x, di, xi,  1);
+        IntVector x02 = load(x, di, xi,  2);
+        IntVector x03 = load(x, di, xi,  3);
+        IntVector x04 = load(x, di, xi,  4);
+        IntVector x05 = load(x, di, xi,  5);
+        IntVector x06 = load(x, di, xi,  6);
+        IntVector x07 = load(x, di, xi,  7);
+        IntVector x08 = load(x, di, xi,  8);
+        IntVector x09 = load(x, di, xi,  9);
+        IntVector x10 = load(x, di, xi, 10);
+        IntVector x11 = load(x, di, xi, 11);
+        IntVector x12 = load(x, di, xi, 12);
+        IntVector x13 = load(x, di, xi, 13);
+        IntVector x14 = load(x, di, xi, 14);
+        IntVector x15 = load(x, di, xi, 15);
+        IntVector t;
+        for (int i = 0; i < 8; i += 2) {
+            t = x00.add(x12);  x04 = x04.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x04.add(x00);  x08 = x08.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x08.add(x04);  x12 = x12.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x12.add(x08);  x00 = x00.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x05.add(x01);  x09 = x09.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x09.add(x05);  x13 = x13.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x13.add(x09);  x01 = x01.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x01.add(x13);  x05 = x05.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x10.add(x06);  x14 = x14.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x14.add(x10);  x02 = x02.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x02.add(x14);  x06 = x06.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x06.add(x02);  x10 = x10.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x15.add(x11);  x03 = x03.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x03.add(x15);  x07 = x07.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x07.add(x03);  x11 = x11.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x11.add(x07);  x15 = x15.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x00.add(x03);  x01 = x01.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x01.add(x00);  x02 = x02.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x02.add(x01);  x03 = x03.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x03.add(x02);  x00 = x00.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x05.add(x04);  x06 = x06.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x06.add(x05);  x07 = x07.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x07.add(x06);  x04 = x04.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x04.add(x07);  x05 = x05.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x10.add(x09);  x11 = x11.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x11.add(x10);  x08 = x08.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x08.add(x11);  x09 = x09.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x09.add(x08);  x10 = x10.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+            t = x15.add(x14);  x12 = x12.lanewise(XOR, t.lanewise(LSHL,  7)).lanewise(XOR, t.lanewise(LSHR, 25));
+            t = x12.add(x15);  x13 = x13.lanewise(XOR, t.lanewise(LSHL,  9)).lanewise(XOR, t.lanewise(LSHR, 23));
+            t = x13.add(x12);  x14 = x14.lanewise(XOR, t.lanewise(LSHL, 13)).lanewise(XOR, t.lanewise(LSHR, 19));
+            t = x14.add(x13);  x15 = x15.lanewise(XOR, t.lanewise(LSHL, 18)).lanewise(XOR, t.lanewise(LSHR, 14));
+        }
+        store(x, di,  0, x00);
+        store(x, di,  1, x01);
+        store(x, di,  2, x02);
+        store(x, di,  3, x03);
+        store(x, di,  4, x04);
+        store(x, di,  5, x05);
+        store(x, di,  6, x06);
+        store(x, di,  7, x07);
+        store(x, di,  8, x08);
+        store(x, di,  9, x09);
+        store(x, di, 10, x10);
+        store(x, di, 11, x11);
+        store(x, di, 12, x12);
+        store(x, di, 13, x13);
+        store(x, di, 14, x14);
+        store(x, di, 15, x15);
+    }
+
+    private void store(int[] x, int di, int w, IntVector a) {
+        IntVector.fromArray(species, x, di + w * lanes).add(a).intoArray(x, di + w * lanes);
+    }
+
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+# compiles and runs the tests in test/
+out=`mktemp -d`
+javac -d $out -cp ".:./ztex/libusbJava:./ztex/java:" BTCMiner.java test/*.java || exit 1
+rc=0
+for t in test/*Test.java; do
+    java -cp "$out:./ztex/libusbJava:./ztex/java:" `basename $t .java` || rc=1
+done
+rm -rf $out
+exit $rc
@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+
+// Regression tests of JsonScanner, run by test.sh
+public class JsonScannerTest {
+
+    private static final String data = "00000001c570c4764aadb3f09895619f549000b8b51a789e7f58ea750000709700000000103ca064f8c76c390683f8203043e91466a7fcc40e6ebc428fbcc2d89b574a864db8345b1b00b5ac00000000000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+
+    private static void check(boolean b, String msg) {
+        if (!b)
+            throw new AssertionError(msg);
+    }
+
+    // requested keys in the middle of a nested object: the scanner has to unwind
+    // without expecting the closing brackets
+    static void keysInTheMiddle() throws Exception {
+        String s = "{\"result\":{\"data\":\"" + data + "\",\"target\":\"ff\",\"midstate\":\"00\"},\"error\":null,\"id\":1}";
+        JsonScanner json = new JsonScanner(s, "data");
+        check(json.get("data").equals(data), "data");
+
+        json = new JsonScanner(s, "data", "target");
+        check(json.get("target").equals("ff"), "target");
+
+        json = new JsonScanner("{\"result\":[{\"a\":[1,2,{\"data\":\"" + data + "\"}],\"b\":3},4],\"id\":1}", "data");
+        check(json.get("data").equals(data), "data in array");
+    }
+
+    static void keysLast() throws Exception {
+        JsonScanner json = new JsonScanner("{\"result\":{\"midstate\":\"00\",\"target\":\"ff\",\"data\":\"" + data + "\"},\"error\":null,\"id\":1}", "data", "error");
+        check(json.get("data").equals(data), "data");
+        check(json.isNull("error"), "error");
+    }
+
+    static void missingKey() throws Exception {
+        JsonScanner json = new JsonScanner("{\"result\":{\"target\":\"ff\"},\"error\":null,\"id\":1}", "data", "target");
+        check(!json.has("data"), "data");
+        check(json.get("target").equals("ff"), "target");
+    }
+
+    static void malformed() throws Exception {
+        try {
+            new JsonScanner("{\"result\":{\"target\":\"ff\"", "data");
+            check(false, "no ParserException");
+        }
+        catch (ParserException e) {
+        }
+    }
+
+    static void split() throws Exception {
+        ArrayList<String> l = JsonScanner.split("[{\"result\":{\"data\":\"00\",\"x\":1},\"id\":1}, {\"result\":null,\"id\":2}]");
+        check(l.size() == 2, "size");
+        check(new JsonScanner(l.get(0), "data").get("data").equals("00"), "element 0");
+        check(new JsonScanner(l.get(1), "result").isNull("result"), "element 1");
+    }
+
+    public static void main(String[] args) throws Exception {
+        keysInTheMiddle();
+        keysLast();
+        missingKey();
+        malformed();
+        split();
+        System.out.println("JsonScannerTest: passed");
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Tests of StratumClient against an in-process stand-in server which answers the
+// requests of the client and sends the notifications given by the test, run by test.sh
+public class StratumClientTest {
+
+    private static final String prevHash1 = "11111111111111111111111111111111111111111111111111111111111111aa";
+    private static final String prevHash2 = "22222222222222222222222222222222222222222222222222222222222222bb";
+
+    private static void check(boolean b, String msg) {
+        if (!b)
+            throw new AssertionError(msg);
+    }
+
+    // Scripted stand-in for a pool: subscribe and authorize are answered directly, the
+    // lines queued by before(method) are sent before the response to the next request
+    // of that method, i.e. the client has processed them once it got the response.
+    static class ScriptedServer extends Thread {
+        final ServerSocket server;
+        final LinkedBlockingQueue<List<?>> submits = new LinkedBlockingQueue<List<?>>();
+        private final ArrayList<String[]> script = new ArrayList<String[]>();
+
+        ScriptedServer() throws IOException {
+            server = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        synchronized void before(String method, String line) {
+            script.add(new String[] { method, line });
+        }
+
+        private synchronized void sendScript(String method, Writer w) throws IOException {
+            for (int i = 0; i < script.size(); ) {
+                if (script.get(i)[0].equals(method))
+                    w.write(script.remove(i)[1] + "\n");
+                else
+                    i++;
+            }
+        }
+
+        public void run() {
+            try (Socket s = server.accept()) {
+                BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+                Writer w = new OutputStreamWriter(s.getOutputStream(), "UTF-8");
+                String line;
+                while ((line = r.readLine()) != null) {
+                    Map<?,?> m = (Map<?,?>) StratumClient.parseJson(line);
+                    String method = (String) m.get("method");
+                    Object id = m.get("id");
+                    sendScript(method, w);
+                    String result;
+                    if (method.equals("mining.subscribe"))
+                        result = "[[[\"mining.notify\",\"ae6812eb4cd7735a302a8a9dd95cf71f\"]],\"08000002\",4]";
+                    else if (method.equals("mining.submit")) {
+                        submits.add((List<?>) m.get("params"));
+                        result = "true";
+                    }
+                    else
+                        result = "true";
+                    w.write("{\"id\":" + id + ",\"result\":" + result + ",\"error\":null}\n");
+                    w.flush();
+                }
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    static String notify(String id, String prevHash, boolean clean) {
+        return "{\"id\":null,\"method\":\"mining.notify\",\"params\":[\"" + id + "\",\"" + prevHash + "\",\"01000000010000\",\"072f736c7573682f000000000100f2052a010000001976a914\","
+            + "[],\"00000002\",\"1c2ac4af\",\"504e86b9\"," + clean + "]}";
+    }
+
+    static String setDifficulty(double d) {
+        return "{\"id\":null,\"method\":\"mining.set_difficulty\",\"params\":[" + d + "]}";
+    }
+
+    // getwork target for the difficulty, 32 bytes little endian
+    static String target(int difficulty) {
+        byte[] b = BigInteger.valueOf(0xffff).shiftLeft(208).divide(BigInteger.valueOf(difficulty)).toByteArray();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32; i++)
+            sb.append(String.format("%02x", i < b.length ? b[b.length - 1 - i] & 255 : 0));
+        return sb.toString();
+    }
+
+    static String field(String response, String key) throws IOException {
+        Map<?,?> m = (Map<?,?>) StratumClient.parseJson(response);
+        return (String) ((Map<?,?>) m.get("result")).get(key);
+    }
+
+    // submits the work with nonce n, returns the parameters received by the server
+    static List<?> submit(StratumClient c, ScriptedServer srv, String data, String nonce) throws Exception {
+        String r = c.request("getwork", data.substring(0, 152) + nonce + data.substring(160));
+        check(r.startsWith("{\"result\":true"), "submit: " + r);
+        List<?> p = srv.submits.poll(5, TimeUnit.SECONDS);
+        check(p != null, "no submit received");
+        return p;
+    }
+
+    // mining.set_difficulty applies to the jobs of the following notifications only
+    static void difficulty() throws Exception {
+        ScriptedServer srv = new ScriptedServer();
+        srv.start();
+        srv.before("mining.authorize", setDifficulty(2));
+        srv.before("mining.authorize", notify("job1", prevHash1, true));
+        StratumClient c = new StratumClient("127.0.0.1", srv.server.getLocalPort(), "user", "passw", 1);
+        try {
+            String r = c.request("getwork", "");
+            String data = field(r, "data");
+            check(data.startsWith("00000002" + prevHash1), "job 1 data");
+            check(field(r, "target").equals(target(2)), "job 1 target");
+
+            // new difficulty without new job: the current job keeps its target
+            srv.before("mining.submit", setDifficulty(4));
+            List<?> p = submit(c, srv, data, "0000a001");
+            check(p.get(0).equals("user") && p.get(1).equals("job1") && p.get(3).equals("504e86b9") && p.get(4).equals("0000a001"), "submit parameters " + p);
+            r = c.request("getwork", "");
+            check(field(r, "data").startsWith("00000002" + prevHash1), "still job 1");
+            check(field(r, "target").equals(target(2)), "job 1 target after set_difficulty");
+            check(c.difficulty() == 2, "difficulty of job 1");
+
+            // the next job gets the new difficulty
+            srv.before("mining.submit", notify("job2", prevHash2, false));
+            submit(c, srv, field(r, "data"), "0000a002");
+            r = c.request("getwork", "");
+            check(field(r, "data").startsWith("00000002" + prevHash2), "job 2 data");
+            check(field(r, "target").equals(target(4)), "job 2 target");
+            check(c.difficulty() == 4, "difficulty of job 2");
+
+            // works of job 1 can still be submitted, the job is not clean
+            p = submit(c, srv, data, "0000a003");
+            check(p.get(1).equals("job1"), "job of old work " + p);
+        }
+        finally {
+            c.close();
+            srv.server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        difficulty();
+        System.out.println("StratumClientTest: passed");
+    }
+}
@@ -0,0 +1,155 @@
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+// Compares the thread models of cluster mode by running the real PollLoop with
+// simulated devices: FPGAs grouped into threads of -n devices (default) and one
+// thread per FPGA (-vt). A USB transfer of a simulated FPGA takes usbTime ms while
+// holding the lock of its board (two FPGAs per board), every 20th poll requests new
+// work which takes netTime ms, 1% of these requests stall for stallTime ms.
+// Reported is the time between two polls of an FPGA.
+//
+// Usage: java ThreadModelBenchmark [FPGAs [FPGAs per thread [duration in s]]]
+// (compiled by test.sh, or: javac -cp .:./ztex/libusbJava:./ztex/java BTCMiner.java test/ThreadModelBenchmark.java)
+public class ThreadModelBenchmark {
+    private static final long usbTime = 1;
+    private static final long netTime = 30;
+    private static final long stallTime = 2000;
+
+    private static class SimulatedFpga extends BTCMiner {
+        private final Object board;
+        private final Random random;
+        private long lastPoll = 0;
+        private int polls = 0;
+        private final long[] intervals = new long[4096];   // ring buffer
+        private int intervalCount = 0;
+
+        SimulatedFpga(Object board, int n) throws NoSuchAlgorithmException {
+            super("simulated FPGA " + n, 4);
+            this.board = board;
+            random = new Random(n);
+            clusterMode = true;
+            isRunning = true;
+        }
+
+        private static void sleep(long ms) {
+            try {
+                Thread.sleep(ms);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+
+        private void usb() {
+            long t = System.currentTimeMillis();
+            synchronized (board) {
+                sleep(usbTime);
+            }
+            usbTime += System.currentTimeMillis() - t;
+        }
+
+        // called by the poll loop once per poll
+        @Override
+        public boolean checkUpdate() {
+            long t = System.currentTimeMillis();
+            if (lastPoll > 0)
+                intervals[intervalCount++ % intervals.length] = t - lastPoll;
+            lastPoll = t;
+            return ++polls % 20 == 0;
+        }
+
+        @Override
+        public boolean getWork() {
+            sleep(random.nextInt(100) == 0 ? stallTime : netTime);
+            getNonces();
+            return true;
+        }
+
+        @Override
+        public void sendData() {
+            usb();
+        }
+
+        @Override
+        public boolean getNonces() {
+            usb();
+            return false;
+        }
+
+        @Override
+        public void updateFreq() {
+        }
+
+        @Override
+        public void printInfo(boolean force) {
+        }
+    }
+
+    private static String run(SimulatedFpga[] fpgas, int perThread, long duration) throws Exception {
+        Vector<Vector<BTCMiner>> groups = new Vector<Vector<BTCMiner>>();
+        Vector<Thread> threads = new Vector<Thread>();
+        for (int i = 0; i < fpgas.length; i += perThread) {
+            Vector<BTCMiner> v = new Vector<BTCMiner>();
+            for (int j = i; j < Math.min(fpgas.length, i + perThread); j++)
+                v.add(fpgas[j]);
+            final PollLoop pollLoop = new PollLoop(v);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    pollLoop.run();
+                }
+            }, "poll loop " + i);
+            groups.add(v);
+            threads.add(t);
+            t.start();
+        }
+
+        long t0 = System.currentTimeMillis();
+        Thread.sleep(duration);
+        for (Vector<BTCMiner> v : groups) {
+            synchronized (v) {
+                v.clear();   // terminates the poll loop
+            }
+        }
+        for (Thread t : threads)
+            t.join();
+        long d = System.currentTimeMillis() - t0;
+
+        int n = 0;
+        long polls = 0;
+        for (SimulatedFpga f : fpgas)
+            n += Math.min(f.intervalCount, f.intervals.length);
+        long[] l = new long[n];
+        n = 0;
+        for (SimulatedFpga f : fpgas) {
+            int k = Math.min(f.intervalCount, f.intervals.length);
+            System.arraycopy(f.intervals, 0, l, n, k);
+            n += k;
+            polls += f.polls;
+        }
+        Arrays.sort(l);
+        return String.format("%4d threads: %6.1f polls/s per FPGA,  interval p50=%dms p90=%dms p99=%dms max=%dms", threads.size(),
+                polls * 1000.0 / d / fpgas.length, l[n / 2], l[n * 9 / 10], l[n * 99 / 100], l[n - 1]);
+    }
+
+    private static SimulatedFpga[] fpgas(int n) throws NoSuchAlgorithmException {
+        SimulatedFpga[] f = new SimulatedFpga[n];
+        Object board = null;
+        for (int i = 0; i < n; i++) {
+            if ((i & 1) == 0)
+                board = new Object();
+            f[i] = new SimulatedFpga(board, i);
+        }
+        return f;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int pt = args.length > 1 ? Integer.parseInt(args[1]) : BTCMinerCluster.maxDevicesPerThread;
+        long d = (args.length > 2 ? Integer.parseInt(args[2]) : 20) * 1000L;
+        BTCMiner.printMsg2(n + " simulated FPGAs, " + d / 1000 + "s per run");
+        BTCMiner.printMsg2("grouped (-n " + pt + "):  " + run(fpgas(n), pt, d));
+        BTCMiner.printMsg2("per FPGA (-vt):   " + run(fpgas(n), 1, d));
+        System.exit(0);
+    }
+}
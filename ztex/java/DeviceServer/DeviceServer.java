@@ -250,16 +250,7 @@ class SocketThread extends Thread {
 
 // ******* str2bin *************************************************************
     private static void str2bin( String s, byte buf[], int start, int len ) {
-	byte bytes[] = null;
-	int l = 0;
-	if ( s != null ) {
-	    bytes = s.getBytes();
-	    l = Math.min(bytes.length,len);
-	}
-	for ( int i=0; i<l; i++ )
-	    buf[start+i]=bytes[i];
-	for ( int i=l; i<len; i++ )
-	    buf[start+i]=0;
+	Codec.strToBytes( s, buf, start, len );
     }
 
 // ******* scan ****************************************************************
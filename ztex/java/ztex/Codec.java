@@ -0,0 +1,319 @@
+package ztex;
+
+/** 
+  * Table driven hex and Base64 conversions.
+  * All methods which write into a caller supplied buffer do not allocate memory.
+  */
+public class Codec {
+    private static final char[] hexChars = "0123456789abcdef".toCharArray();
+    private static final char[] base64Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] hexValues = new byte[128];	// -1 for invalid characters
+    private static final byte[] base64Values = new byte[128];
+
+    static {
+	for ( int i=0; i<128; i++ ) {
+	    hexValues[i] = -1;
+	    base64Values[i] = -1;
+	}
+	for ( int i=0; i<16; i++ ) {
+	    hexValues[hexChars[i]] = (byte) i;
+	    hexValues[Character.toUpperCase(hexChars[i])] = (byte) i;
+	}
+	for ( int i=0; i<64; i++ )
+	    base64Values[base64Chars[i]] = (byte) i;
+    }
+
+// ******* hexDigit ************************************************************
+    private static int hexDigit ( char c ) throws NumberFormatException {
+	int d = c < 128 ? hexValues[c] : -1;
+	if ( d < 0 )
+	    throw new NumberFormatException("Invalid hex digit: `" + c + "'");
+	return d;
+    }
+
+// ******* hexToBytes **********************************************************
+/** 
+  * Decodes len bytes from the hex string s, starting at character sOffs.
+  * @param s The hex string.
+  * @param sOffs Position of the first character.
+  * @param buf The destination buffer.
+  * @param offs Position of the first byte in the destination buffer.
+  * @param len Number of bytes to decode.
+  * @throws NumberFormatException if the string is too short or contains invalid characters.
+  */
+    public static void hexToBytes ( CharSequence s, int sOffs, byte[] buf, int offs, int len ) throws NumberFormatException {
+	if ( s.length() < sOffs + len*2 )
+	    throw new NumberFormatException("Invalid length of string");
+	for ( int i=0; i<len; i++ )
+	    buf[offs+i] = (byte) ( (hexDigit(s.charAt(sOffs+i*2)) << 4) | hexDigit(s.charAt(sOffs+i*2+1)) );
+    }
+
+/** 
+  * Fills buf with the bytes encoded at the beginning of the hex string s.
+  * @param s The hex string.
+  * @param buf The destination buffer.
+  * @throws NumberFormatException if the string is too short or contains invalid characters.
+  */
+    public static void hexToBytes ( CharSequence s, byte[] buf ) throws NumberFormatException {
+	hexToBytes( s, 0, buf, 0, buf.length );
+    }
+
+/** 
+  * Decodes a hex string.
+  * @param s The hex string.
+  * @return the decoded bytes.
+  * @throws NumberFormatException if the length is odd or the string contains invalid characters.
+  */
+    public static byte[] hexToBytes ( CharSequence s ) throws NumberFormatException {
+	if ( (s.length() & 1) != 0 )
+	    throw new NumberFormatException("Invalid length of string");
+	byte[] buf = new byte[s.length() >> 1];
+	hexToBytes( s, 0, buf, 0, buf.length );
+	return buf;
+    }
+
+/** 
+  * Batch variant: decodes len bytes of each string into consecutive sections of buf.
+  * @param s The hex strings.
+  * @param buf The destination buffer, must have a size of at least offs + s.length*len.
+  * @param offs Position of the first byte in the destination buffer.
+  * @param len Number of bytes to decode per string.
+  * @throws NumberFormatException if a string is too short or contains invalid characters.
+  */
+    public static void hexToBytes ( CharSequence[] s, byte[] buf, int offs, int len ) throws NumberFormatException {
+	for ( int i=0; i<s.length; i++ )
+	    hexToBytes( s[i], 0, buf, offs+i*len, len );
+    }
+
+// ******* bytesToHex **********************************************************
+/** 
+  * Encodes len bytes of data as hex digits into the char buffer out.
+  * @param data The source buffer.
+  * @param offs Position of the first byte.
+  * @param len Number of bytes to encode.
+  * @param out The destination buffer, 2*len characters are written.
+  * @param outOffs Position of the first character in the destination buffer.
+  */
+    public static void bytesToHex ( byte[] data, int offs, int len, char[] out, int outOffs ) {
+	for ( int i=0; i<len; i++ ) {
+	    int b = data[offs+i];
+	    out[outOffs+i*2] = hexChars[(b >> 4) & 15];
+	    out[outOffs+i*2+1] = hexChars[b & 15];
+	}
+    }
+
+/** 
+  * Appends len bytes of data as hex digits to sb.
+  * @param sb The destination.
+  * @param data The source buffer.
+  * @param offs Position of the first byte.
+  * @param len Number of bytes to encode.
+  * @return sb
+  */
+    public static StringBuilder bytesToHex ( StringBuilder sb, byte[] data, int offs, int len ) {
+	for ( int i=0; i<len; i++ ) {
+	    int b = data[offs+i];
+	    sb.append( hexChars[(b >> 4) & 15] );
+	    sb.append( hexChars[b & 15] );
+	}
+	return sb;
+    }
+
+/** 
+  * Encodes data as hex string.
+  * @param data The source buffer.
+  * @return the hex string.
+  */
+    public static String bytesToHex ( byte[] data ) {
+	char[] buf = new char[data.length*2];
+	bytesToHex( data, 0, data.length, buf, 0 );
+	return new String(buf);
+    }
+
+/** 
+  * Batch variant: encodes consecutive sections of len bytes as hex strings.
+  * @param data The source buffer.
+  * @param offs Position of the first byte.
+  * @param len Number of bytes per string.
+  * @param count Number of strings.
+  * @return the hex strings.
+  */
+    public static String[] bytesToHex ( byte[] data, int offs, int len, int count ) {
+	String[] s = new String[count];
+	char[] buf = new char[len*2];
+	for ( int i=0; i<count; i++ ) {
+	    bytesToHex( data, offs+i*len, len, buf, 0 );
+	    s[i] = new String(buf);
+	}
+	return s;
+    }
+
+// ******* base64Encode ********************************************************
+/** 
+  * Encodes len bytes of src as Base64 (with padding, without line breaks) into out.
+  * @param src The source buffer.
+  * @param offs Position of the first byte.
+  * @param len Number of bytes to encode.
+  * @param out The destination buffer, must have room for {@link #base64Length(int)} characters.
+  * @param outOffs Position of the first character in the destination buffer.
+  * @return the number of characters written.
+  */
+    public static int base64Encode ( byte[] src, int offs, int len, char[] out, int outOffs ) {
+	int j = outOffs;
+	int end = offs + len - len % 3;
+	for ( int i=offs; i<end; i+=3 ) {
+	    int x = ((src[i] & 255) << 16) | ((src[i+1] & 255) << 8) | (src[i+2] & 255);
+	    out[j++] = base64Chars[x >> 18];
+	    out[j++] = base64Chars[(x >> 12) & 63];
+	    out[j++] = base64Chars[(x >> 6) & 63];
+	    out[j++] = base64Chars[x & 63];
+	}
+	if ( len % 3 == 1 ) {
+	    int x = (src[end] & 255) << 16;
+	    out[j++] = base64Chars[x >> 18];
+	    out[j++] = base64Chars[(x >> 12) & 63];
+	    out[j++] = '=';
+	    out[j++] = '=';
+	}
+	else if ( len % 3 == 2 ) {
+	    int x = ((src[end] & 255) << 16) | ((src[end+1] & 255) << 8);
+	    out[j++] = base64Chars[x >> 18];
+	    out[j++] = base64Chars[(x >> 12) & 63];
+	    out[j++] = base64Chars[(x >> 6) & 63];
+	    out[j++] = '=';
+	}
+	return j - outOffs;
+    }
+
+/** 
+  * Encodes data as Base64 string (with padding, without line breaks).
+  * @param data The source buffer.
+  * @return the Base64 string.
+  */
+    public static String base64Encode ( byte[] data ) {
+	char[] buf = new char[base64Length(data.length)];
+	base64Encode( data, 0, data.length, buf, 0 );
+	return new String(buf);
+    }
+
+/** 
+  * Returns the length of the Base64 encoding of len bytes.
+  * @param len Number of bytes.
+  * @return the number of characters.
+  */
+    public static int base64Length ( int len ) {
+	return (len + 2) / 3 * 4;
+    }
+
+// ******* base64Decode ********************************************************
+/** 
+  * Decodes the Base64 string s into buf. White space is skipped, decoding stops at the first '='.
+  * @param s The Base64 string.
+  * @param buf The destination buffer.
+  * @param offs Position of the first byte in the destination buffer.
+  * @return the number of bytes written.
+  * @throws NumberFormatException if the string contains invalid characters.
+  * @throws ArrayIndexOutOfBoundsException if the destination buffer is too small.
+  */
+    public static int base64Decode ( CharSequence s, byte[] buf, int offs ) throws NumberFormatException {
+	int j = offs;
+	int x = 0;
+	int n = 0;
+	for ( int i=0; i<s.length(); i++ ) {
+	    char c = s.charAt(i);
+	    if ( c == '=' )
+		break;
+	    if ( c <= 32 )
+		continue;
+	    int d = c < 128 ? base64Values[c] : -1;
+	    if ( d < 0 )
+		throw new NumberFormatException("Invalid Base64 character: `" + c + "'");
+	    x = (x << 6) | d;
+	    n += 6;
+	    if ( n >= 8 ) {
+		n -= 8;
+		buf[j++] = (byte) (x >> n);
+	    }
+	}
+	return j - offs;
+    }
+
+// ******* strToBytes **********************************************************
+/** 
+  * Copies the ASCII characters of s into a fixed size field of buf which is padded with zeros.
+  * Non-ASCII characters are replaced by '?'.
+  * @param s The string, may be null.
+  * @param buf The destination buffer.
+  * @param offs Position of the field.
+  * @param len Size of the field.
+  */
+    public static void strToBytes ( String s, byte[] buf, int offs, int len ) {
+	int l = s == null ? 0 : Math.min( s.length(), len );
+	for ( int i=0; i<l; i++ ) {
+	    char c = s.charAt(i);
+	    buf[offs+i] = (byte) ( c < 128 ? c : '?' );
+	}
+	for ( int i=l; i<len; i++ )
+	    buf[offs+i] = 0;
+    }
+
+// ******* main ****************************************************************
+/** 
+  * Micro benchmark: compares the table driven conversions with the substring / Integer.parseInt
+  * based implementations they replaced. Usage: java ztex.Codec [&lt;seconds per test&gt;]
+  * @param args Command line arguments.
+  */
+    public static void main ( String[] args ) {
+	double sec = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+	byte[] data = new byte[128];
+	for ( int i=0; i<data.length; i++ )
+	    data[i] = (byte) (i*167 + 13);
+	String hex = bytesToHex( data );
+	byte[] buf = new byte[data.length];
+	char[] cbuf = new char[data.length*2];
+
+	if ( !hex.equals(refBytesToHex(data)) || !java.util.Arrays.equals(refHexToBytes(hex), data) 
+	     || !base64Encode(data).equals(java.util.Base64.getEncoder().encodeToString(data)) )
+	    throw new RuntimeException("Codec: self test failed");
+	base64Decode( base64Encode(data), buf, 0 );
+	if ( !java.util.Arrays.equals(buf, data) )
+	    throw new RuntimeException("Codec: Base64 self test failed");
+
+	String[] names = { "hex decode (parseInt)", "hex decode (table)", "hex encode (toString)", "hex encode (table)", "base64 encode (java.util)", "base64 encode (table)" };
+	for ( int t=0; t<names.length; t++ ) {
+	    long n = 0;
+	    int sink = 0;
+	    long t0 = System.nanoTime();
+	    long tmax = t0 + (long) (sec*1e9);
+	    while ( System.nanoTime() < tmax ) {
+		for ( int i=0; i<1000; i++ ) {
+		    switch ( t ) {
+			case 0: sink += refHexToBytes(hex)[i & 127]; break;
+			case 1: hexToBytes( hex, buf ); sink += buf[i & 127]; break;
+			case 2: sink += refBytesToHex(data).charAt(i & 255); break;
+			case 3: bytesToHex( data, 0, data.length, cbuf, 0 ); sink += cbuf[i & 255]; break;
+			case 4: sink += java.util.Base64.getEncoder().encodeToString(data).charAt(i & 127); break;
+			case 5: base64Encode( data, 0, data.length, cbuf, 0 ); sink += cbuf[i & 127]; break;
+		    }
+		}
+		n += 1000;
+	    }
+	    double ns = (System.nanoTime() - t0) * 1.0 / n;
+	    System.out.println( String.format("%-26s %8.1f ns per %d bytes  %6.2f ns/byte", names[t], ns, data.length, ns/data.length) + (sink == 42 ? " " : "") );
+	}
+    }
+
+    private static byte[] refHexToBytes ( String str ) {
+	byte[] buf = new byte[str.length() >> 1];
+	for ( int i=0; i<buf.length; i++)
+	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
+	return buf;
+    }
+
+    private static String refBytesToHex ( byte[] b ) {
+	StringBuilder sb = new StringBuilder(80);
+	for ( int i=0; i<b.length; i++ )
+	    sb.append(Integer.toString((b[i] & 0xff) + 0x100,16).substring(1));
+	return sb.toString();
+    }
+}